@@ -28,7 +28,12 @@ import android.content.Intent;
 public class BootCompletedReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
+        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            /* Credential encrypted storage is only available from here on */
+            HtcGestureService.migratePreferences(context);
+        }
         Intent serviceIntent = new Intent(context, HtcGestureService.class);
+        serviceIntent.setAction(intent.getAction());
         context.startService(serviceIntent);
     }
 }
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.content.Intent;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import android.view.KeyEvent;
+
+import java.io.PrintWriter;
+import java.net.URISyntaxException;
+
+/*
+ * Turns the action bindings of a GestureConfig into ready-to-run action
+ * objects. Intents are built once per config change, so performing an
+ * action parses nothing and only allocates the timestamped copies of media
+ * key events.
+ */
+public class GestureActionRegistry {
+
+    private static final String TAG = "GestureActionRegistry";
+
+    private static final String[] ACTION_NAMES = {
+        "none", "camera", "torch", "wake", "play_pause", "next", "previous", "app"
+    };
+
+    /* Inverse of the action names used in dumps and sequence patterns, -1 if unknown */
+    public static int actionFromName(String name) {
+        for (int type = 0; type < ACTION_NAMES.length; type++) {
+            if (ACTION_NAMES[type].equals(name)) {
+                return type;
+            }
+        }
+        return -1;
+    }
+
+    /* What the actions need from the service, called on the dispatch thread */
+    public interface Host {
+        public void launchCamera();
+
+        public void toggleTorch(int gestureIndex, long timestamp);
+
+        public void wakeUp();
+
+        public void startActivity(Intent intent);
+
+        public void dispatchMediaKey(KeyEvent down, KeyEvent up);
+
+        public void doHapticFeedback(int gestureIndex);
+    }
+
+    public static abstract class Action {
+        private final int mType;
+
+        Action(int type) {
+            mType = type;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        abstract void perform(Host host, int gestureIndex, long timestamp);
+    }
+
+    private static final class NoAction extends Action {
+        NoAction() {
+            super(GestureConfig.ACTION_NONE);
+        }
+
+        @Override
+        void perform(Host host, int gestureIndex, long timestamp) {
+            /* Empty */
+        }
+    }
+
+    private static final class CameraAction extends Action {
+        CameraAction() {
+            super(GestureConfig.ACTION_CAMERA);
+        }
+
+        @Override
+        void perform(Host host, int gestureIndex, long timestamp) {
+            host.launchCamera();
+            host.doHapticFeedback(gestureIndex);
+        }
+    }
+
+    private static final class TorchAction extends Action {
+        TorchAction() {
+            super(GestureConfig.ACTION_TORCH);
+        }
+
+        @Override
+        void perform(Host host, int gestureIndex, long timestamp) {
+            /* The torch gesture has always turned the display on as well */
+            host.wakeUp();
+            host.toggleTorch(gestureIndex, timestamp);
+            host.doHapticFeedback(gestureIndex);
+        }
+    }
+
+    private static final class WakeAction extends Action {
+        WakeAction() {
+            super(GestureConfig.ACTION_WAKE);
+        }
+
+        @Override
+        void perform(Host host, int gestureIndex, long timestamp) {
+            host.wakeUp();
+        }
+    }
+
+    private static final class MediaKeyAction extends Action {
+        /* Templates, copied with the current time for each dispatch */
+        private final KeyEvent mDown;
+        private final KeyEvent mUp;
+
+        MediaKeyAction(int type, int keyCode) {
+            super(type);
+            mDown = new KeyEvent(KeyEvent.ACTION_DOWN, keyCode);
+            mUp = new KeyEvent(KeyEvent.ACTION_UP, keyCode);
+        }
+
+        @Override
+        void perform(Host host, int gestureIndex, long timestamp) {
+            /* Listeners drop or misorder key events without proper times */
+            final long now = SystemClock.uptimeMillis();
+            /* Media keys work with the display off, no need to wake up */
+            host.dispatchMediaKey(KeyEvent.changeTimeRepeat(mDown, now, 0),
+                    KeyEvent.changeTimeRepeat(mUp, now, 0));
+            host.doHapticFeedback(gestureIndex);
+        }
+    }
+
+    private static final class LaunchAction extends Action {
+        private final Intent mIntent;
+
+        LaunchAction(Intent intent) {
+            super(GestureConfig.ACTION_LAUNCH_APP);
+            mIntent = intent;
+        }
+
+        @Override
+        void perform(Host host, int gestureIndex, long timestamp) {
+            host.wakeUp();
+            host.startActivity(mIntent);
+            host.doHapticFeedback(gestureIndex);
+        }
+    }
+
+    private static final Action NONE = new NoAction();
+
+    private final Host mHost;
+    private final GestureClock mClock;
+    /* Parameterless actions are shared between gestures */
+    private final Action[] mSharedActions = new Action[GestureConfig.ACTION_COUNT];
+    private volatile Action[] mActions;
+
+    /* Only touched on the dispatch thread */
+    private final int[] mCounts = new int[GestureConfig.ACTION_COUNT];
+    private final long[] mTotalNanos = new long[GestureConfig.ACTION_COUNT];
+    private final long[] mMaxNanos = new long[GestureConfig.ACTION_COUNT];
+
+    public GestureActionRegistry(Host host, GestureClock clock) {
+        mHost = host;
+        mClock = clock;
+        mSharedActions[GestureConfig.ACTION_NONE] = NONE;
+        mSharedActions[GestureConfig.ACTION_CAMERA] = new CameraAction();
+        mSharedActions[GestureConfig.ACTION_TORCH] = new TorchAction();
+        mSharedActions[GestureConfig.ACTION_WAKE] = new WakeAction();
+        mSharedActions[GestureConfig.ACTION_MEDIA_PLAY_PAUSE] = new MediaKeyAction(
+                GestureConfig.ACTION_MEDIA_PLAY_PAUSE, KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+        mSharedActions[GestureConfig.ACTION_MEDIA_NEXT] = new MediaKeyAction(
+                GestureConfig.ACTION_MEDIA_NEXT, KeyEvent.KEYCODE_MEDIA_NEXT);
+        mSharedActions[GestureConfig.ACTION_MEDIA_PREVIOUS] = new MediaKeyAction(
+                GestureConfig.ACTION_MEDIA_PREVIOUS, KeyEvent.KEYCODE_MEDIA_PREVIOUS);
+        mActions = new Action[GestureMotionSensor.GESTURE_COUNT];
+        for (int index = 0; index < GestureMotionSensor.GESTURE_COUNT; index++) {
+            mActions[index] = NONE;
+        }
+    }
+
+    /* Rebuilds the bindings, called whenever the config changes */
+    public void update(GestureConfig config) {
+        final Action[] actions = new Action[GestureMotionSensor.GESTURE_COUNT];
+        for (int index = 0; index < GestureMotionSensor.GESTURE_COUNT; index++) {
+            actions[index] = resolve(config.getAction(index), config.getTarget(index));
+        }
+        mActions = actions;
+    }
+
+    private Action resolve(int type, String target) {
+        if (type == GestureConfig.ACTION_LAUNCH_APP) {
+            if (TextUtils.isEmpty(target)) {
+                return NONE;
+            }
+            try {
+                Intent intent = Intent.parseUri(target, Intent.URI_INTENT_SCHEME);
+                intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                return new LaunchAction(intent);
+            } catch (URISyntaxException e) {
+                Log.w(TAG, "Invalid launch target: " + target);
+                return NONE;
+            }
+        }
+        if (type <= GestureConfig.ACTION_NONE || type >= GestureConfig.ACTION_COUNT) {
+            return NONE;
+        }
+        return mSharedActions[type];
+    }
+
+    public int getActionType(int gestureIndex) {
+        return mActions[gestureIndex].getType();
+    }
+
+    /* Returns the type of the action that was performed */
+    public int perform(int gestureIndex, long timestamp) {
+        return run(mActions[gestureIndex], gestureIndex, timestamp);
+    }
+
+    /* Performs a parameterless action of the given type, e.g. for a gesture sequence */
+    public int performAction(int type, int gestureIndex, long timestamp) {
+        if (type <= GestureConfig.ACTION_NONE || type >= GestureConfig.ACTION_COUNT
+                || mSharedActions[type] == null) {
+            return GestureConfig.ACTION_NONE;
+        }
+        return run(mSharedActions[type], gestureIndex, timestamp);
+    }
+
+    private int run(Action action, int gestureIndex, long timestamp) {
+        final int type = action.getType();
+        if (type == GestureConfig.ACTION_NONE) {
+            return type;
+        }
+
+        final long start = mClock.elapsedRealtimeNanos();
+        action.perform(mHost, gestureIndex, timestamp);
+        final long duration = mClock.elapsedRealtimeNanos() - start;
+        mCounts[type]++;
+        mTotalNanos[type] += duration;
+        if (duration > mMaxNanos[type]) {
+            mMaxNanos[type] = duration;
+        }
+        return type;
+    }
+
+    public void dump(PrintWriter pw) {
+        final Action[] actions = mActions;
+        pw.print("  bound actions:");
+        for (int index = 0; index < actions.length; index++) {
+            pw.print(" " + GestureMotionSensor.gestureIndexToString(index) + "="
+                    + ACTION_NAMES[actions[index].getType()]);
+        }
+        pw.println();
+        pw.println("  action dispatch (us):");
+        for (int type = GestureConfig.ACTION_NONE + 1; type < GestureConfig.ACTION_COUNT; type++) {
+            if (mCounts[type] == 0) {
+                continue;
+            }
+            pw.println("    " + ACTION_NAMES[type] + ": n=" + mCounts[type]
+                    + " avg=" + mTotalNanos[type] / mCounts[type] / 1000
+                    + " max=" + mMaxNanos[type] / 1000);
+        }
+    }
+}
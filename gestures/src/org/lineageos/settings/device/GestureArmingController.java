@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.hardware.display.DisplayManager;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Display;
+
+import java.io.PrintWriter;
+
+/*
+ * Arms the gesture sensor while the default display is off or dozing, driven
+ * by display state changes rather than the late SCREEN_ON/OFF broadcasts.
+ * All callbacks run on the handler passed to start().
+ */
+public class GestureArmingController {
+
+    private static final boolean DEBUG = false;
+    private static final String TAG = "GestureArmingController";
+
+    public interface Callbacks {
+        /* The display went off or into doze, gestures should be armed */
+        public void onArm();
+
+        /* The display is on, gestures should be disarmed */
+        public void onDisarm();
+    }
+
+    private final DisplayManager mDisplayManager;
+    private final Callbacks mCallbacks;
+    private final GestureClock mClock;
+    private boolean mStarted;
+    private boolean mArmed;
+
+    private int mArmCount;
+    /*
+     * From handling the display change to onArm() returning. DisplayManager
+     * doesn't report when the display itself switched, so this doesn't include
+     * the callback delivery delay.
+     */
+    private long mLastArmLatencyNs;
+    private long mMaxArmLatencyNs;
+    private long mTotalArmLatencyNs;
+
+    public GestureArmingController(DisplayManager displayManager, Callbacks callbacks,
+            GestureClock clock) {
+        mDisplayManager = displayManager;
+        mCallbacks = callbacks;
+        mClock = clock;
+    }
+
+    public void start(Handler handler) {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mDisplayManager.registerDisplayListener(mDisplayListener, handler);
+        /* Pick up the current state, e.g. when started with the screen already off */
+        if (handler != null) {
+            handler.post(mUpdateRunnable);
+        } else {
+            updateDisplayState();
+        }
+    }
+
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mDisplayManager.unregisterDisplayListener(mDisplayListener);
+    }
+
+    public boolean isArmed() {
+        return mArmed;
+    }
+
+    private static boolean shouldArm(int state) {
+        switch (state) {
+            case Display.STATE_OFF:
+            case Display.STATE_DOZE:
+            case Display.STATE_DOZE_SUSPEND:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void updateDisplayState() {
+        final long start = mClock.elapsedRealtimeNanos();
+        final Display display = mDisplayManager.getDisplay(Display.DEFAULT_DISPLAY);
+        if (display == null) {
+            return;
+        }
+
+        final int state = display.getState();
+        if (state == Display.STATE_UNKNOWN) {
+            return;
+        }
+
+        final boolean arm = shouldArm(state);
+        if (arm == mArmed) {
+            return;
+        }
+
+        if (DEBUG) Log.d(TAG, "Display state " + state + ", armed=" + arm);
+        mArmed = arm;
+        if (arm) {
+            mCallbacks.onArm();
+            final long latency = mClock.elapsedRealtimeNanos() - start;
+            mArmCount++;
+            mLastArmLatencyNs = latency;
+            mTotalArmLatencyNs += latency;
+            if (latency > mMaxArmLatencyNs) {
+                mMaxArmLatencyNs = latency;
+            }
+        } else {
+            mCallbacks.onDisarm();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.print("  arming: armed=" + mArmed + " count=" + mArmCount);
+        if (mArmCount > 0) {
+            pw.print(" change-to-armed last=" + mLastArmLatencyNs / 1000 + "us"
+                    + " avg=" + mTotalArmLatencyNs / mArmCount / 1000 + "us"
+                    + " max=" + mMaxArmLatencyNs / 1000 + "us");
+        }
+        pw.println();
+    }
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateDisplayState();
+        }
+    };
+
+    private final DisplayManager.DisplayListener mDisplayListener =
+            new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {
+            /* Empty */
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+            /* Empty */
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (displayId == Display.DEFAULT_DISPLAY) {
+                updateDisplayState();
+            }
+        }
+    };
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.media.AudioManager;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+
+/*
+ * Immutable snapshot of everything the gesture paths need to know about the
+ * user's settings. A new snapshot is built whenever one of the inputs changes,
+ * so reading it never requires a provider or binder call.
+ */
+public final class GestureConfig {
+
+    /* Values of the action preferences */
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_CAMERA = 1;
+    public static final int ACTION_TORCH = 2;
+    public static final int ACTION_WAKE = 3;
+    public static final int ACTION_MEDIA_PLAY_PAUSE = 4;
+    public static final int ACTION_MEDIA_NEXT = 5;
+    public static final int ACTION_MEDIA_PREVIOUS = 6;
+    /* Launches the intent URI stored as the gesture's target */
+    public static final int ACTION_LAUNCH_APP = 7;
+    public static final int ACTION_COUNT = 8;
+
+    /* Gesture index -> action */
+    private final int[] mActions;
+    /* Gesture index -> intent URI for ACTION_LAUNCH_APP, may be null */
+    private final String[] mTargets;
+    private final boolean mDoubleTapEnabled;
+    private final boolean mHapticFeedbackEnabled;
+    private final int mRingerMode;
+    private final boolean mPocketGateEnabled;
+
+    public GestureConfig(int[] actions, String[] targets, boolean doubleTapEnabled,
+            boolean hapticFeedbackEnabled, int ringerMode, boolean pocketGateEnabled) {
+        mActions = Arrays.copyOf(actions, GestureMotionSensor.GESTURE_COUNT);
+        mTargets = Arrays.copyOf(targets, GestureMotionSensor.GESTURE_COUNT);
+        mDoubleTapEnabled = doubleTapEnabled;
+        mHapticFeedbackEnabled = hapticFeedbackEnabled;
+        mRingerMode = ringerMode;
+        mPocketGateEnabled = pocketGateEnabled;
+    }
+
+    public int getAction(int gestureIndex) {
+        return mActions[gestureIndex];
+    }
+
+    public String getTarget(int gestureIndex) {
+        return mTargets[gestureIndex];
+    }
+
+    public boolean isDoubleTapEnabled() {
+        return mDoubleTapEnabled;
+    }
+
+    public boolean isHapticFeedbackEnabled() {
+        return mHapticFeedbackEnabled;
+    }
+
+    public int getRingerMode() {
+        return mRingerMode;
+    }
+
+    public boolean isPocketGateEnabled() {
+        return mPocketGateEnabled;
+    }
+
+    public boolean shouldVibrate() {
+        return mHapticFeedbackEnabled && mRingerMode != AudioManager.RINGER_MODE_SILENT;
+    }
+
+    /* Gestures bound to the given action */
+    public int getGesturesForAction(int action) {
+        int gestures = 0;
+        for (int index = 0; index < mActions.length; index++) {
+            if (mActions[index] == action) {
+                gestures |= GestureMotionSensor.indexToGesture(index);
+            }
+        }
+        return gestures;
+    }
+
+    /* Gestures that should be armed while the display is off */
+    public int getArmableGestures() {
+        int gestures = 0;
+        for (int index = 0; index < mActions.length; index++) {
+            if (mActions[index] == ACTION_NONE) {
+                continue;
+            }
+            if (mActions[index] == ACTION_LAUNCH_APP && TextUtils.isEmpty(mTargets[index])) {
+                continue;
+            }
+            if (index == GestureMotionSensor.GESTURE_INDEX_DOUBLE_TAP && !mDoubleTapEnabled) {
+                continue;
+            }
+            gestures |= GestureMotionSensor.indexToGesture(index);
+        }
+        return gestures;
+    }
+
+    public GestureConfig withActions(int[] actions, String[] targets) {
+        return new GestureConfig(actions, targets, mDoubleTapEnabled,
+                mHapticFeedbackEnabled, mRingerMode, mPocketGateEnabled);
+    }
+
+    public GestureConfig withDoubleTapEnabled(boolean enabled) {
+        return new GestureConfig(mActions, mTargets, enabled,
+                mHapticFeedbackEnabled, mRingerMode, mPocketGateEnabled);
+    }
+
+    public GestureConfig withHapticFeedbackEnabled(boolean enabled) {
+        return new GestureConfig(mActions, mTargets, mDoubleTapEnabled,
+                enabled, mRingerMode, mPocketGateEnabled);
+    }
+
+    public GestureConfig withRingerMode(int ringerMode) {
+        return new GestureConfig(mActions, mTargets, mDoubleTapEnabled,
+                mHapticFeedbackEnabled, ringerMode, mPocketGateEnabled);
+    }
+
+    public GestureConfig withPocketGateEnabled(boolean enabled) {
+        return new GestureConfig(mActions, mTargets, mDoubleTapEnabled,
+                mHapticFeedbackEnabled, mRingerMode, enabled);
+    }
+
+    @Override
+    public String toString() {
+        return "actions=" + Arrays.toString(mActions)
+                + " targets=" + Arrays.toString(mTargets)
+                + " doubleTap=" + mDoubleTapEnabled
+                + " haptic=" + mHapticFeedbackEnabled
+                + " ringerMode=" + mRingerMode
+                + " pocketGate=" + mPocketGateEnabled;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.util.Log;
+
+import org.lineageos.internal.util.FileUtils;
+
+/*
+ * Writer for the sensor hub gesture_motion control node. The node is probed
+ * until it is found accessible and the last written mask is cached, so
+ * writing an unchanged mask is free.
+ */
+public class GestureControlNode {
+
+    private static final boolean DEBUG = false;
+    private static final String TAG = "GestureControlNode";
+
+    private static final int MASK_UNKNOWN = -1;
+
+    private final String mPath;
+    private boolean mAccessible;
+    private int mWrittenMask = MASK_UNKNOWN;
+    private int mWriteCount;
+    private int mSkipCount;
+    private GestureFlightRecorder mRecorder;
+
+    public GestureControlNode(String path) {
+        mPath = path;
+    }
+
+    public synchronized void setFlightRecorder(GestureFlightRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public synchronized boolean isAccessible() {
+        /* Only a successful probe is cached, the node may still be coming up */
+        if (!mAccessible) {
+            mAccessible = FileUtils.isFileReadable(mPath) && FileUtils.isFileWritable(mPath);
+            if (!mAccessible) {
+                Log.w(TAG, "Control path " + mPath + " not accessible");
+            }
+        }
+        return mAccessible;
+    }
+
+    public synchronized boolean write(int mask) {
+        if (mask == mWrittenMask) {
+            mSkipCount++;
+            return true;
+        }
+
+        if (!isAccessible()) {
+            return false;
+        }
+
+        if (DEBUG) Log.d(TAG, "Writing mask " + Integer.toHexString(mask));
+        mWriteCount++;
+        final boolean success = FileUtils.writeLine(mPath, Integer.toHexString(mask));
+        if (mRecorder != null) {
+            mRecorder.record(GestureFlightRecorder.TYPE_CONTROL_WRITE, mask, success ? 1 : 0);
+        }
+        if (!success) {
+            Log.w(TAG, "Failed to write control path " + mPath);
+            /* Node state is unknown now, don't skip the next write */
+            mWrittenMask = MASK_UNKNOWN;
+            return false;
+        }
+
+        mWrittenMask = mask;
+        return true;
+    }
+
+    /* Reads the mask back from the node, -1 if it can't be read or parsed */
+    public synchronized int read() {
+        final String line = FileUtils.readOneLine(mPath);
+        if (line == null) {
+            return MASK_UNKNOWN;
+        }
+        String value = line.trim();
+        if (value.startsWith("0x") || value.startsWith("0X")) {
+            value = value.substring(2);
+        }
+        try {
+            return Integer.parseInt(value, 16);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Unexpected control path contents: " + line);
+            return MASK_UNKNOWN;
+        }
+    }
+
+    /* Forget the cached state, e.g. after the sensor hub has been reset */
+    public synchronized void invalidate() {
+        mAccessible = false;
+        mWrittenMask = MASK_UNKNOWN;
+    }
+
+    public synchronized int getWrittenMask() {
+        return mWrittenMask;
+    }
+
+    public synchronized int getWriteCount() {
+        return mWriteCount;
+    }
+
+    public synchronized int getSkipCount() {
+        return mSkipCount;
+    }
+}
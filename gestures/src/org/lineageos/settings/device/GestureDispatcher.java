@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/*
+ * Turns gesture events into actions: counts them, hands them to the sequence
+ * recognizer, gates them on the proximity sensor and performs the bound action
+ * under a wakelock. Shared by the service and the trace replayer, so a
+ * recorded trace goes through exactly the code that handled it on the device.
+ * Everything but setConfig() and setSequencePatterns() runs on the handler's thread.
+ */
+public class GestureDispatcher implements GestureMotionSensor.GestureMotionSensorListener {
+
+    private static final boolean DEBUG = false;
+
+    private static final String TAG = "GestureDispatcher";
+
+    private static final int SENSOR_WAKELOCK_DURATION = 200;
+
+    private final GestureMotionSensor mGestureSensor;
+    private final GestureActionRegistry mActionRegistry;
+    private final GestureWakeManager mWakeManager;
+    private final GestureEnergyStats mEnergyStats;
+    private final GestureLatencyTracker mLatencyTracker;
+    private final GestureClock mClock;
+    private final PocketDetector mPocketDetector;
+    private final GestureSequenceRecognizer mSequenceRecognizer;
+    private GestureFlightRecorder mRecorder;
+
+    /* Rebuilt on the main thread whenever an input changes, read lock-free everywhere */
+    private volatile GestureConfig mConfig;
+
+    /* Gesture whose action is being performed, only touched on the handler's thread */
+    private int mPerformingGesture = -1;
+
+    GestureDispatcher(GestureMotionSensor gestureSensor, GestureActionRegistry actionRegistry,
+            GestureWakeManager wakeManager, GestureEnergyStats energyStats,
+            GestureLatencyTracker latencyTracker, PocketDetector.ProximitySource proximity,
+            Handler handler, GestureClock clock, long sequenceTimeoutMs) {
+        mGestureSensor = gestureSensor;
+        mActionRegistry = actionRegistry;
+        mWakeManager = wakeManager;
+        mEnergyStats = energyStats;
+        mLatencyTracker = latencyTracker;
+        mClock = clock;
+        mPocketDetector = new PocketDetector(proximity, handler, mPocketCallback);
+        /* Single gestures reach mListener through the recognizer */
+        mSequenceRecognizer = new GestureSequenceRecognizer(handler, clock, mListener,
+                mSequenceCallbacks, sequenceTimeoutMs);
+    }
+
+    public void setConfig(GestureConfig config) {
+        mConfig = config;
+    }
+
+    public void setFlightRecorder(GestureFlightRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    public void setSequencePatterns(String spec) {
+        mSequenceRecognizer.setPatterns(spec);
+    }
+
+    /* Gestures that are part of a sequence pattern, and must be armed for it */
+    public int getSequenceGestures() {
+        return mSequenceRecognizer.getGestures();
+    }
+
+    /*
+     * First stop of every event. Events are counted here exactly once, before
+     * the recognizer holds them back for a sequence or replays them.
+     */
+    @Override
+    public void onEvent(int type, long timestamp) {
+        if ((type & (mConfig.getArmableGestures() | mSequenceRecognizer.getGestures())) != 0) {
+            mEnergyStats.onEvent(GestureMotionSensor.gestureToIndex(type));
+        }
+        mSequenceRecognizer.onEvent(type, timestamp);
+    }
+
+    /* Wakes the device up on behalf of the action being performed */
+    public void wakeUp() {
+        if (mWakeManager.wakeUp()) {
+            mEnergyStats.onWakeUp(mPerformingGesture);
+        }
+    }
+
+    /* Gesture whose action is being performed, -1 outside of an action */
+    int getPerformingGesture() {
+        return mPerformingGesture;
+    }
+
+    private GestureMotionSensor.GestureMotionSensorListener mListener =
+        new GestureMotionSensor.GestureMotionSensorListener() {
+        @Override
+        public void onEvent(int type, long timestamp) {
+            if (DEBUG) Log.d(TAG, "Received event: " + type);
+            final int index = GestureMotionSensor.gestureToIndex(type);
+            if (index < 0 || (type & mConfig.getArmableGestures()) == 0) {
+                /* Only armed for a bound client */
+                return;
+            }
+            mLatencyTracker.record(index, GestureLatencyTracker.STAGE_FANOUT,
+                    mClock.elapsedRealtimeNanos() - mGestureSensor.getEventReceivedNanos());
+            checkPocketAndPerform(GestureConfig.ACTION_NONE, index, timestamp);
+        }
+    };
+
+    /* The action is the one of a matched sequence, ACTION_NONE for a single gesture */
+    private PocketDetector.Callback mPocketCallback = new PocketDetector.Callback() {
+        @Override
+        public void onPocketCheckResult(int gestureIndex, long timestamp, int action,
+                boolean covered) {
+            if (covered) {
+                if (DEBUG) Log.d(TAG, "Suppressing gesture in pocket: " + gestureIndex);
+                return;
+            }
+            perform(action, gestureIndex, timestamp);
+        }
+    };
+
+    /* Performs right away unless the pocket has to be checked first, see perform() */
+    private void checkPocketAndPerform(int action, int index, long timestamp) {
+        if (mConfig.isPocketGateEnabled() && mPocketDetector.isAvailable()) {
+            /* Keep the CPU up until the proximity sensor has answered */
+            mEnergyStats.onWakeLockHeld(index, mWakeManager.holdWakeLock(index,
+                    mPocketDetector.getCheckTimeoutMs() + SENSOR_WAKELOCK_DURATION));
+            mPocketDetector.check(index, timestamp, action);
+            return;
+        }
+        perform(action, index, timestamp);
+    }
+
+    /* The action is the one of a matched sequence, ACTION_NONE for the gesture's own */
+    private void perform(int action, int index, long timestamp) {
+        final long start = mClock.elapsedRealtimeNanos();
+        /* Keep the CPU up from here until the action has taken effect */
+        mEnergyStats.onWakeLockHeld(index,
+                mWakeManager.holdWakeLock(index, SENSOR_WAKELOCK_DURATION));
+        if (mRecorder != null) {
+            mRecorder.record(GestureFlightRecorder.TYPE_ACTION, index,
+                    action != GestureConfig.ACTION_NONE
+                            ? action : mActionRegistry.getActionType(index));
+        }
+        mPerformingGesture = index;
+        final int performed = action != GestureConfig.ACTION_NONE
+                ? mActionRegistry.performAction(action, index, timestamp)
+                : mActionRegistry.perform(index, timestamp);
+        if (performed != GestureConfig.ACTION_NONE) {
+            mEnergyStats.onAction(index);
+        }
+        mPerformingGesture = -1;
+        final long end = mClock.elapsedRealtimeNanos();
+        mLatencyTracker.record(index, GestureLatencyTracker.STAGE_ACTION, end - start);
+        mLatencyTracker.record(index, GestureLatencyTracker.STAGE_TOTAL, end - timestamp);
+    }
+
+    private GestureSequenceRecognizer.Callbacks mSequenceCallbacks =
+            new GestureSequenceRecognizer.Callbacks() {
+        @Override
+        public void onSequencePending(int gestureIndex, long timeoutMs) {
+            /* Keep the CPU up until the pattern completes or times out */
+            mEnergyStats.onWakeLockHeld(gestureIndex,
+                    mWakeManager.holdWakeLock(gestureIndex, timeoutMs + SENSOR_WAKELOCK_DURATION));
+        }
+
+        @Override
+        public void onSequence(int action, int gestureIndex, long timestamp) {
+            checkPocketAndPerform(action, gestureIndex, timestamp);
+        }
+    };
+
+    public void dump(PrintWriter pw) {
+        mPocketDetector.dump(pw);
+        mSequenceRecognizer.dump(pw);
+    }
+}
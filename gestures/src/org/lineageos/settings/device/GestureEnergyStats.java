@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.os.Handler;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/*
+ * Per-gesture cost accounting: events received, actions performed, device
+ * wake-ups, wakelock and torch time, and false positives, i.e. gesture
+ * wake-ups followed by the display going off again without the user
+ * unlocking or using the action over the keyguard. Other lock screen use,
+ * e.g. reading notifications, isn't seen and still counts as a false positive.
+ * Counters live in primitive arrays and are written to disk on a background
+ * handler at most once per save interval, and only if something changed.
+ */
+public class GestureEnergyStats {
+
+    private static final String TAG = "GestureEnergyStats";
+
+    private static final int MAGIC = 0x47455331; /* "GES1" */
+
+    public static final int STAT_EVENTS = 0;
+    public static final int STAT_ACTIONS = 1;
+    public static final int STAT_WAKE_UPS = 2;
+    public static final int STAT_WAKELOCK_MS = 3;
+    public static final int STAT_TORCH_MS = 4;
+    public static final int STAT_FALSE_POSITIVES = 5;
+    private static final int STAT_COUNT = 6;
+
+    private static final String[] STAT_NAMES = {
+        "events", "actions", "wakeUps", "wakelockMs", "torchMs", "falsePositives"
+    };
+
+    private static final long SAVE_INTERVAL_MS = 15 * 60 * 1000;
+
+    private final AtomicFile mFile;
+    /* Runs the saves, must not be the dispatch thread's */
+    private final Handler mSaveHandler;
+    private final GestureClock mClock;
+    private final long mFalsePositiveWindowMs;
+
+    /* Indexed by gesture index * STAT_COUNT + stat */
+    private final long[] mStats;
+    private boolean mSaveScheduled;
+
+    /* The last gesture wake-up still waiting for user interaction */
+    private int mPendingWakeGesture = -1;
+    private long mPendingWakeTimeMs;
+
+    public GestureEnergyStats(File file, Handler saveHandler, GestureClock clock,
+            long falsePositiveWindowMs) {
+        mFile = new AtomicFile(file);
+        mSaveHandler = saveHandler;
+        mClock = clock;
+        mFalsePositiveWindowMs = falsePositiveWindowMs;
+        mStats = read(mFile);
+    }
+
+    private synchronized void add(int gestureIndex, int stat, long value) {
+        if (gestureIndex < 0 || gestureIndex >= GestureMotionSensor.GESTURE_COUNT) {
+            return;
+        }
+        mStats[gestureIndex * STAT_COUNT + stat] += value;
+        if (!mSaveScheduled) {
+            mSaveScheduled = true;
+            mSaveHandler.postDelayed(mSaveRunnable, SAVE_INTERVAL_MS);
+        }
+    }
+
+    public void onEvent(int gestureIndex) {
+        add(gestureIndex, STAT_EVENTS, 1);
+    }
+
+    public void onAction(int gestureIndex) {
+        add(gestureIndex, STAT_ACTIONS, 1);
+    }
+
+    public void onWakeLockHeld(int gestureIndex, long durationMs) {
+        add(gestureIndex, STAT_WAKELOCK_MS, durationMs);
+    }
+
+    public void onTorchOff(int gestureIndex, long onDurationMs) {
+        add(gestureIndex, STAT_TORCH_MS, onDurationMs);
+    }
+
+    public void onWakeUp(int gestureIndex) {
+        add(gestureIndex, STAT_WAKE_UPS, 1);
+        synchronized (this) {
+            mPendingWakeGesture = gestureIndex;
+            mPendingWakeTimeMs = mClock.uptimeMillis();
+        }
+    }
+
+    /* The user unlocked, so the last wake-up was wanted */
+    public synchronized void onUserPresent() {
+        mPendingWakeGesture = -1;
+    }
+
+    /* The action of the last wake-up took effect over the keyguard, e.g. the camera came up */
+    public synchronized void onInteraction() {
+        mPendingWakeGesture = -1;
+    }
+
+    public void onDisplayOff() {
+        final int gestureIndex;
+        synchronized (this) {
+            gestureIndex = mPendingWakeGesture;
+            mPendingWakeGesture = -1;
+            if (gestureIndex < 0
+                    || mClock.uptimeMillis() - mPendingWakeTimeMs > mFalsePositiveWindowMs) {
+                return;
+            }
+        }
+        add(gestureIndex, STAT_FALSE_POSITIVES, 1);
+    }
+
+    public synchronized long get(int gestureIndex, int stat) {
+        return mStats[gestureIndex * STAT_COUNT + stat];
+    }
+
+    /* Writes pending changes right away, e.g. before the service goes away */
+    public void flush() {
+        mSaveHandler.removeCallbacks(mSaveRunnable);
+        save();
+    }
+
+    /* Serialized on mFile, flush() may run while a scheduled save is writing */
+    private void save() {
+        final long[] stats;
+        synchronized (this) {
+            if (!mSaveScheduled) {
+                return;
+            }
+            mSaveScheduled = false;
+            stats = mStats.clone();
+        }
+
+        synchronized (mFile) {
+            FileOutputStream fos = null;
+            try {
+                fos = mFile.startWrite();
+                DataOutputStream out = new DataOutputStream(fos);
+                out.writeInt(MAGIC);
+                out.writeInt(GestureMotionSensor.GESTURE_COUNT);
+                out.writeInt(STAT_COUNT);
+                for (long value : stats) {
+                    out.writeLong(value);
+                }
+                out.flush();
+                mFile.finishWrite(fos);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to save gesture stats", e);
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    private static long[] read(AtomicFile file) {
+        final long[] stats = new long[GestureMotionSensor.GESTURE_COUNT * STAT_COUNT];
+        try (DataInputStream in = new DataInputStream(file.openRead())) {
+            if (in.readInt() != MAGIC || in.readInt() != GestureMotionSensor.GESTURE_COUNT
+                    || in.readInt() != STAT_COUNT) {
+                Log.w(TAG, "Discarding incompatible gesture stats");
+                return stats;
+            }
+            for (int i = 0; i < stats.length; i++) {
+                stats[i] = in.readLong();
+            }
+        } catch (FileNotFoundException e) {
+            /* Nothing saved yet */
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read gesture stats", e);
+            return new long[stats.length];
+        }
+        return stats;
+    }
+
+    /* Reads the last saved counters without a running service, for the settings */
+    public static long[] readSaved(File file) {
+        return read(new AtomicFile(file));
+    }
+
+    public static long getSaved(long[] stats, int gestureIndex, int stat) {
+        return stats[gestureIndex * STAT_COUNT + stat];
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("  energy (false positive window " + mFalsePositiveWindowMs + "ms):");
+        for (int index = 0; index < GestureMotionSensor.GESTURE_COUNT; index++) {
+            pw.print("    " + GestureMotionSensor.gestureIndexToString(index) + ":");
+            for (int stat = 0; stat < STAT_COUNT; stat++) {
+                pw.print(" " + STAT_NAMES[stat] + "=" + mStats[index * STAT_COUNT + stat]);
+            }
+            pw.println();
+        }
+    }
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+/*
+ * Filters bursts of gesture events flushed from the sensor hub FIFO.
+ * Repeats of a gesture within the dedupe window are merged into the first
+ * one and events older than the staleness threshold are dropped.
+ * Only meant to be used from the sensor dispatch thread.
+ */
+public class GestureEventCoalescer {
+
+    private static final int HISTORY_SIZE = 8;
+
+    private final long[] mTimestamps = new long[HISTORY_SIZE];
+    private final int[] mGestures = new int[HISTORY_SIZE];
+    private int mNext;
+
+    private long mDedupeWindowNs;
+    private long mStaleThresholdNs;
+
+    private int mMergedCount;
+    private int mDroppedCount;
+
+    public GestureEventCoalescer(long dedupeWindowMs, long staleThresholdMs) {
+        setWindows(dedupeWindowMs, staleThresholdMs);
+    }
+
+    /* A value of 0 disables the respective check */
+    public void setWindows(long dedupeWindowMs, long staleThresholdMs) {
+        mDedupeWindowNs = dedupeWindowMs * 1000000L;
+        mStaleThresholdNs = staleThresholdMs * 1000000L;
+    }
+
+    /* Returns whether the event should be reported */
+    public boolean accept(int gesture, long timestamp, long nowNanos) {
+        if (mStaleThresholdNs > 0 && nowNanos - timestamp > mStaleThresholdNs) {
+            mDroppedCount++;
+            return false;
+        }
+
+        if (mDedupeWindowNs > 0) {
+            for (int i = 0; i < HISTORY_SIZE; i++) {
+                if (mGestures[i] == gesture
+                        && Math.abs(timestamp - mTimestamps[i]) < mDedupeWindowNs) {
+                    mMergedCount++;
+                    return false;
+                }
+            }
+        }
+
+        mGestures[mNext] = gesture;
+        mTimestamps[mNext] = timestamp;
+        mNext = (mNext + 1) % HISTORY_SIZE;
+        return true;
+    }
+
+    public int getMergedCount() {
+        return mMergedCount;
+    }
+
+    public int getDroppedCount() {
+        return mDroppedCount;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Always-on ring buffer of gesture pipeline events, backed by a memory-mapped
+ * file so it survives process death and can be pulled from the device.
+ *
+ * Layout, little endian:
+ *   header: int magic, int version, int capacity, int next record index
+ *   record: long elapsedRealtimeNanos, int type, int arg0, long arg1
+ *
+ * Recording only does absolute puts into the mapping and never allocates.
+ * Decoding needs no Android classes, so a pulled file can be read on a host
+ * with: java org.lineageos.settings.device.GestureFlightRecorder <file>
+ */
+public class GestureFlightRecorder {
+
+    /* arg0: raw sensor event ID, arg1: sensor hub timestamp */
+    public static final int TYPE_SENSOR_EVENT = 1;
+    /* arg0: decoded gesture, arg1: enabled gesture mask */
+    public static final int TYPE_GESTURE = 2;
+    /* arg0: gesture index, arg1: action */
+    public static final int TYPE_ACTION = 3;
+    /* arg0: 1 when armed, 0 when disarmed, arg1: armed gesture mask */
+    public static final int TYPE_SCREEN = 4;
+    /* arg0: mask written, arg1: 1 on success, 0 on failure */
+    public static final int TYPE_CONTROL_WRITE = 5;
+
+    private static final int MAGIC = 0x31524647; /* "GFR1" */
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 24;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_NEXT = 12;
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final GestureClock mClock;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private int mNext;
+
+    public GestureFlightRecorder(File file, int capacity, GestureClock clock)
+            throws IOException {
+        mClock = clock;
+        mCapacity = capacity;
+        final int size = HEADER_SIZE + capacity * RECORD_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (mBuffer.getInt(0) == MAGIC && mBuffer.getInt(4) == VERSION
+                && mBuffer.getInt(OFFSET_CAPACITY) == capacity) {
+            /* Keep appending to the records of the previous process */
+            mNext = Math.floorMod(mBuffer.getInt(OFFSET_NEXT), capacity);
+        } else {
+            for (int i = 0; i < size; i++) {
+                mBuffer.put(i, (byte) 0);
+            }
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(OFFSET_CAPACITY, capacity);
+            mBuffer.putInt(OFFSET_NEXT, 0);
+            mNext = 0;
+        }
+    }
+
+    public void record(int type, int arg0, long arg1) {
+        final long now = mClock.elapsedRealtimeNanos();
+        synchronized (this) {
+            final int offset = HEADER_SIZE + mNext * RECORD_SIZE;
+            mBuffer.putLong(offset, now);
+            mBuffer.putInt(offset + 8, type);
+            mBuffer.putInt(offset + 12, arg0);
+            mBuffer.putLong(offset + 16, arg1);
+            mNext = (mNext + 1) % mCapacity;
+            mBuffer.putInt(OFFSET_NEXT, mNext);
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        decode(mBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN), pw);
+    }
+
+    private static String typeToString(int type) {
+        switch (type) {
+            case TYPE_SENSOR_EVENT:
+                return "sensor";
+            case TYPE_GESTURE:
+                return "gesture";
+            case TYPE_ACTION:
+                return "action";
+            case TYPE_SCREEN:
+                return "screen";
+            case TYPE_CONTROL_WRITE:
+                return "control";
+            default:
+                return "type" + type;
+        }
+    }
+
+    /* Prints all records, oldest first */
+    public static void decode(ByteBuffer buffer, PrintWriter pw) {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            pw.println("  flight recorder: invalid buffer");
+            return;
+        }
+        if (buffer.getInt(4) != VERSION) {
+            pw.println("  flight recorder: unsupported version " + buffer.getInt(4));
+            return;
+        }
+
+        final int capacity = buffer.getInt(OFFSET_CAPACITY);
+        if (capacity <= 0 || buffer.capacity() < HEADER_SIZE + capacity * RECORD_SIZE) {
+            pw.println("  flight recorder: truncated buffer");
+            return;
+        }
+
+        final int next = Math.floorMod(buffer.getInt(OFFSET_NEXT), capacity);
+        pw.println("  flight recorder (elapsed ns, type, arg0, arg1):");
+        for (int i = 0; i < capacity; i++) {
+            final int offset = HEADER_SIZE + ((next + i) % capacity) * RECORD_SIZE;
+            final int type = buffer.getInt(offset + 8);
+            if (type == 0) {
+                /* Never written */
+                continue;
+            }
+            pw.println("    " + buffer.getLong(offset) + " " + typeToString(type)
+                    + " 0x" + Integer.toHexString(buffer.getInt(offset + 12))
+                    + " " + buffer.getLong(offset + 16));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: GestureFlightRecorder <file>");
+            System.exit(1);
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(args[0], "r")) {
+            ByteBuffer buffer = raf.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            PrintWriter pw = new PrintWriter(System.out);
+            decode(buffer, pw);
+            pw.flush();
+        }
+    }
+}
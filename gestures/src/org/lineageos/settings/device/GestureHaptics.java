@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.VibrationEffect;
+import android.os.Vibrator;
+import android.text.TextUtils;
+import android.util.Log;
+
+/*
+ * Plays per-gesture haptic feedback from prebuilt effects. Vibrating is
+ * posted to a separate handler, so it never delays the gesture action.
+ */
+public class GestureHaptics {
+
+    private static final String TAG = "GestureHaptics";
+
+    private static final long DEFAULT_PULSE_MS = 100;
+
+    private final Vibrator mVibrator;
+    private final Handler mHandler;
+    private final VibrationEffect[] mEffects = new VibrationEffect[GestureMotionSensor.GESTURE_COUNT];
+    private final Runnable[] mVibrateRunnables = new Runnable[GestureMotionSensor.GESTURE_COUNT];
+
+    public GestureHaptics(Vibrator vibrator, Resources res, Handler handler) {
+        mVibrator = vibrator;
+        mHandler = handler;
+
+        final VibrationEffect defaultEffect = VibrationEffect.createOneShot(DEFAULT_PULSE_MS,
+                VibrationEffect.DEFAULT_AMPLITUDE);
+        final String[] patterns = res.getStringArray(R.array.config_gestureHapticPatterns);
+        for (int index = 0; index < GestureMotionSensor.GESTURE_COUNT; index++) {
+            VibrationEffect effect = null;
+            if (index < patterns.length) {
+                effect = parseEffect(patterns[index]);
+            }
+            mEffects[index] = effect != null ? effect : defaultEffect;
+
+            final VibrationEffect gestureEffect = mEffects[index];
+            mVibrateRunnables[index] = new Runnable() {
+                @Override
+                public void run() {
+                    mVibrator.vibrate(gestureEffect);
+                }
+            };
+        }
+    }
+
+    private static VibrationEffect parseEffect(String pattern) {
+        if (TextUtils.isEmpty(pattern)) {
+            return null;
+        }
+
+        final String[] parts = pattern.split(",");
+        final long[] timings = new long[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                timings[i] = Long.parseLong(parts[i].trim());
+            }
+            return VibrationEffect.createWaveform(timings, -1);
+        } catch (IllegalArgumentException e) {
+            /* Also covers NumberFormatException */
+            Log.w(TAG, "Invalid haptic pattern: " + pattern);
+            return null;
+        }
+    }
+
+    public void vibrate(int gestureIndex) {
+        if (gestureIndex < 0 || gestureIndex >= GestureMotionSensor.GESTURE_COUNT) {
+            return;
+        }
+        mHandler.post(mVibrateRunnables[gestureIndex]);
+    }
+}
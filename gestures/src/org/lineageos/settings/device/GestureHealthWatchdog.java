@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/*
+ * Confirms that arming actually took effect and recovers if it didn't: a
+ * missing sensor is looked up again, and a failed control node write or
+ * sensor registration is redone from scratch, with exponential backoff.
+ * Must be called from the dispatch thread, which also runs the retries.
+ */
+public class GestureHealthWatchdog {
+
+    private static final String TAG = "GestureHealthWatchdog";
+
+    private static final long RETRY_INITIAL_MS = 1000;
+    private static final long RETRY_MAX_MS = 5 * 60 * 1000;
+    /* Stop retrying until the next arming change after this many attempts */
+    private static final int RETRY_MAX_ATTEMPTS = 10;
+
+    private final GestureMotionSensor mSensor;
+    private final GestureControlNode mControlNode;
+    private final Handler mHandler;
+    private final GestureClock mClock;
+    private final boolean mVerifyReadback;
+
+    private int mExpectedGestures;
+    private boolean mDegraded;
+    private String mProblem;
+    private long mDegradedSinceMs;
+    private int mAttempts;
+
+    private int mCheckCount;
+    private int mDegradedCount;
+    private int mRecoveryAttemptCount;
+    private int mRecoveredCount;
+
+    /* The control node is the one the sensor writes, passed separately so tests can swap it */
+    public GestureHealthWatchdog(GestureMotionSensor sensor, GestureControlNode controlNode,
+            Handler handler, GestureClock clock, boolean verifyReadback) {
+        mSensor = sensor;
+        mControlNode = controlNode;
+        mHandler = handler;
+        mClock = clock;
+        mVerifyReadback = verifyReadback;
+    }
+
+    /* Called after every reconcile with the gestures that should be armed, 0 if disarmed */
+    public void setExpectedGestures(int gestures) {
+        if (gestures == mExpectedGestures && mDegraded) {
+            /* Recovery for this state is already in progress or given up */
+            return;
+        }
+        mExpectedGestures = gestures;
+        mAttempts = 0;
+        mHandler.removeCallbacks(mRecoverRunnable);
+        /* Runs after the control update the reconcile may have scheduled */
+        mHandler.removeCallbacks(mCheckRunnable);
+        mHandler.post(mCheckRunnable);
+    }
+
+    public boolean isHealthy() {
+        return !mDegraded;
+    }
+
+    int getRecoveryAttemptCount() {
+        return mRecoveryAttemptCount;
+    }
+
+    int getRecoveredCount() {
+        return mRecoveredCount;
+    }
+
+    private String findProblem() {
+        if (!mSensor.hasSensor()) {
+            return "sensor missing";
+        }
+        if (mExpectedGestures == 0) {
+            return null;
+        }
+        if (!mSensor.isListening()) {
+            return "arming failed";
+        }
+        if (mSensor.getRegisteredLatencyMs() < 0) {
+            return "sensor registration failed";
+        }
+        final int enabled = mSensor.getEnabledGestures();
+        if (mControlNode.getWrittenMask() != enabled) {
+            return "control write failed";
+        }
+        if (mVerifyReadback) {
+            final int read = mControlNode.read();
+            if (read != enabled) {
+                return "control readback " + Integer.toHexString(read)
+                        + " != " + Integer.toHexString(enabled);
+            }
+        }
+        return null;
+    }
+
+    private void check() {
+        mCheckCount++;
+        final String problem = findProblem();
+        if (problem == null) {
+            if (mDegraded) {
+                Log.i(TAG, "Recovered after " + mAttempts + " attempts");
+                mDegraded = false;
+                mProblem = null;
+                mRecoveredCount++;
+            }
+            mAttempts = 0;
+            return;
+        }
+
+        if (!mDegraded) {
+            mDegraded = true;
+            mDegradedSinceMs = mClock.uptimeMillis();
+            mDegradedCount++;
+        }
+        mProblem = problem;
+
+        if (mAttempts >= RETRY_MAX_ATTEMPTS) {
+            Log.e(TAG, "Giving up: " + problem);
+            return;
+        }
+        final long delay = Math.min(RETRY_INITIAL_MS << mAttempts, RETRY_MAX_MS);
+        mAttempts++;
+        Log.w(TAG, "Degraded: " + problem + ", retrying in " + delay + "ms");
+        mHandler.postDelayed(mRecoverRunnable, delay);
+    }
+
+    private void recover() {
+        mRecoveryAttemptCount++;
+        if (!mSensor.rediscoverSensor()) {
+            check();
+            return;
+        }
+        if (mExpectedGestures != 0) {
+            mSensor.rearm();
+        }
+        check();
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.print("  health: " + (mDegraded ? "degraded (" + mProblem + ", "
+                + (mClock.uptimeMillis() - mDegradedSinceMs) + "ms, attempt "
+                + mAttempts + ")" : "healthy"));
+        pw.println(" checks=" + mCheckCount + " degraded=" + mDegradedCount
+                + " recoveryAttempts=" + mRecoveryAttemptCount
+                + " recovered=" + mRecoveredCount
+                + " readback=" + (mVerifyReadback ? "on" : "off"));
+    }
+
+    private final Runnable mCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+
+    private final Runnable mRecoverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            recover();
+        }
+    };
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import java.io.PrintWriter;
+
+/*
+ * Fixed-bucket latency histograms per gesture and pipeline stage.
+ * All storage is allocated up front, so recording never allocates.
+ */
+public class GestureLatencyTracker {
+
+    /* Sensor hub timestamp -> onSensorChanged */
+    public static final int STAGE_DELIVERY = 0;
+    /* onSensorChanged -> gesture listener */
+    public static final int STAGE_FANOUT = 1;
+    /* Gesture listener -> action returned */
+    public static final int STAGE_ACTION = 2;
+    /* Sensor hub timestamp -> action returned */
+    public static final int STAGE_TOTAL = 3;
+    /* Sensor hub timestamp -> torch reported on */
+    public static final int STAGE_TORCH = 4;
+    private static final int STAGE_COUNT = 5;
+
+    private static final String[] STAGE_NAMES = {
+        "delivery", "fanout", "action", "total", "torch"
+    };
+
+    /* Upper bucket bounds in microseconds, the last bucket catches everything above */
+    private static final long[] BUCKET_LIMITS_US = {
+        500, 1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000, 500000, 1000000
+    };
+    private static final int BUCKET_COUNT = BUCKET_LIMITS_US.length + 1;
+
+    private static final int SERIES_COUNT = GestureMotionSensor.GESTURE_COUNT * STAGE_COUNT;
+
+    private final long[] mBuckets = new long[SERIES_COUNT * BUCKET_COUNT];
+    private final long[] mCounts = new long[SERIES_COUNT];
+    private final long[] mSumsUs = new long[SERIES_COUNT];
+    private final long[] mMaxUs = new long[SERIES_COUNT];
+
+    public synchronized void record(int gestureIndex, int stage, long nanos) {
+        if (gestureIndex < 0 || gestureIndex >= GestureMotionSensor.GESTURE_COUNT) {
+            return;
+        }
+
+        long us = nanos < 0 ? 0 : nanos / 1000;
+        int series = gestureIndex * STAGE_COUNT + stage;
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS_US.length && us > BUCKET_LIMITS_US[bucket]) {
+            bucket++;
+        }
+
+        mBuckets[series * BUCKET_COUNT + bucket]++;
+        mCounts[series]++;
+        mSumsUs[series] += us;
+        if (us > mMaxUs[series]) {
+            mMaxUs[series] = us;
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Gesture latency (us):");
+        pw.print("  buckets: <=");
+        for (long limit : BUCKET_LIMITS_US) {
+            pw.print(" ");
+            pw.print(limit);
+        }
+        pw.println(" >");
+
+        for (int gesture = 0; gesture < GestureMotionSensor.GESTURE_COUNT; gesture++) {
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                int series = gesture * STAGE_COUNT + stage;
+                long count = mCounts[series];
+                if (count == 0) {
+                    continue;
+                }
+
+                pw.print("  ");
+                pw.print(GestureMotionSensor.gestureIndexToString(gesture));
+                pw.print("/");
+                pw.print(STAGE_NAMES[stage]);
+                pw.print(": n=");
+                pw.print(count);
+                pw.print(" avg=");
+                pw.print(mSumsUs[series] / count);
+                pw.print(" max=");
+                pw.print(mMaxUs[series]);
+                pw.print(" [");
+                for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                    if (bucket > 0) {
+                        pw.print(" ");
+                    }
+                    pw.print(mBuckets[series * BUCKET_COUNT + bucket]);
+                }
+                pw.println("]");
+            }
+        }
+    }
+}
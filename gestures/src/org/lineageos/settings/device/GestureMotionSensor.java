@@ -22,13 +22,16 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import com.android.internal.annotations.VisibleForTesting;
 
-import org.lineageos.internal.util.FileUtils;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GestureMotionSensor {
 
@@ -47,6 +50,15 @@ public class GestureMotionSensor {
     public static final int SENSOR_GESTURE_CAMERA = 0x40;
     public static final int SENSOR_GESTURE_DOUBLE_TAP = 0x8000;
 
+    /* Dense per-gesture indices, used for per-gesture bookkeeping */
+    public static final int GESTURE_INDEX_DOUBLE_TAP = 0;
+    public static final int GESTURE_INDEX_SWIPE_UP = 1;
+    public static final int GESTURE_INDEX_SWIPE_DOWN = 2;
+    public static final int GESTURE_INDEX_SWIPE_LEFT = 3;
+    public static final int GESTURE_INDEX_SWIPE_RIGHT = 4;
+    public static final int GESTURE_INDEX_CAMERA = 5;
+    public static final int GESTURE_COUNT = 6;
+
     /* Corresponds to actual sensor ID, internal use only */
     private static final int SENSOR_TYPE_ANY_MOTION = 65537;
     private static final int SENSOR_TYPE_GESTURE_MOTION = 65538;
@@ -60,53 +72,246 @@ public class GestureMotionSensor {
     private static final int SENSOR_EVENT_ID_CAMERA = 6;
 
     protected static final int BATCH_LATENCY_IN_MS = 100;
+    /* Used instead while a gesture bound to a time critical action is armed */
+    protected static final int LOW_BATCH_LATENCY_IN_MS = 0;
+    private static final int LATENCY_UNREGISTERED = -1;
+
+    private static final long DEFAULT_DEDUPE_WINDOW_MS = 300;
+    private static final long DEFAULT_STALE_THRESHOLD_MS = 1000;
 
     private static GestureMotionSensor sInstance;
     private Context mContext;
-    private SensorManager mSensorManager;
-    private Sensor mSensor;
-    private int mEnabledGestures;
-    private List<GestureMotionSensorListener> mListeners;
+    private final SensorSource mSensorSource;
+    private Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final GestureControlNode mControlNode;
+    private volatile boolean mListening;
+    private volatile int mLowLatencyGestures;
+    private int mRegisteredLatencyMs = LATENCY_UNREGISTERED;
+    private final AtomicBoolean mControlUpdatePending = new AtomicBoolean(false);
+    private final AtomicInteger mEnabledGestures = new AtomicInteger(0);
+    private final Object mListenersLock = new Object();
+    /* Copy-on-write, replaced as a whole under mListenersLock and read lock-free */
+    private volatile ListenerRecord[] mListeners = new ListenerRecord[0];
+    private GestureLatencyTracker mLatencyTracker;
+    private long mEventReceivedNanos;
+    private GestureClock mClock = GestureClock.SYSTEM;
+    private GestureFlightRecorder mRecorder;
+    private final GestureEventCoalescer mCoalescer = new GestureEventCoalescer(
+            DEFAULT_DEDUPE_WINDOW_MS, DEFAULT_STALE_THRESHOLD_MS);
+
+    /* Sensor event ID -> gesture bit, 0 for events we don't know about */
+    private static final int[] EVENT_ID_TO_GESTURE = new int[16];
+    /* Gesture bit position -> dense gesture index, -1 for unused bits */
+    private static final int[] GESTURE_BIT_TO_INDEX = new int[32];
+
+    static {
+        EVENT_ID_TO_GESTURE[SENSOR_EVENT_ID_DOUBLE_TAP] = SENSOR_GESTURE_DOUBLE_TAP;
+        EVENT_ID_TO_GESTURE[SENSOR_EVENT_ID_SWIPE_UP] = SENSOR_GESTURE_SWIPE_UP;
+        EVENT_ID_TO_GESTURE[SENSOR_EVENT_ID_SWIPE_DOWN] = SENSOR_GESTURE_SWIPE_DOWN;
+        EVENT_ID_TO_GESTURE[SENSOR_EVENT_ID_SWIPE_LEFT] = SENSOR_GESTURE_SWIPE_LEFT;
+        EVENT_ID_TO_GESTURE[SENSOR_EVENT_ID_SWIPE_RIGHT] = SENSOR_GESTURE_SWIPE_RIGHT;
+        EVENT_ID_TO_GESTURE[SENSOR_EVENT_ID_CAMERA] = SENSOR_GESTURE_CAMERA;
+
+        Arrays.fill(GESTURE_BIT_TO_INDEX, -1);
+        for (int index = 0; index < GESTURE_COUNT; index++) {
+            GESTURE_BIT_TO_INDEX[Integer.numberOfTrailingZeros(indexToGesture(index))] = index;
+        }
+    }
 
     private static int sensorEventToGesture(int event) {
-        switch (event) {
-            case SENSOR_EVENT_ID_DOUBLE_TAP:
+        if (event < 0 || event >= EVENT_ID_TO_GESTURE.length) {
+            return 0;
+        }
+        return EVENT_ID_TO_GESTURE[event];
+    }
+
+    public static int gestureToIndex(int gesture) {
+        if (Integer.bitCount(gesture) != 1) {
+            return -1;
+        }
+        return GESTURE_BIT_TO_INDEX[Integer.numberOfTrailingZeros(gesture)];
+    }
+
+    public static int indexToGesture(int index) {
+        switch (index) {
+            case GESTURE_INDEX_DOUBLE_TAP:
                 return SENSOR_GESTURE_DOUBLE_TAP;
-            case SENSOR_EVENT_ID_SWIPE_UP:
+            case GESTURE_INDEX_SWIPE_UP:
                 return SENSOR_GESTURE_SWIPE_UP;
-            case SENSOR_EVENT_ID_SWIPE_DOWN:
+            case GESTURE_INDEX_SWIPE_DOWN:
                 return SENSOR_GESTURE_SWIPE_DOWN;
-            case SENSOR_EVENT_ID_SWIPE_LEFT:
+            case GESTURE_INDEX_SWIPE_LEFT:
                 return SENSOR_GESTURE_SWIPE_LEFT;
-            case SENSOR_EVENT_ID_SWIPE_RIGHT:
+            case GESTURE_INDEX_SWIPE_RIGHT:
                 return SENSOR_GESTURE_SWIPE_RIGHT;
+            case GESTURE_INDEX_CAMERA:
+                return SENSOR_GESTURE_CAMERA;
+            default:
+                return 0;
+        }
+    }
+
+    public static String gestureIndexToString(int index) {
+        switch (index) {
+            case GESTURE_INDEX_DOUBLE_TAP:
+                return "double_tap";
+            case GESTURE_INDEX_SWIPE_UP:
+                return "swipe_up";
+            case GESTURE_INDEX_SWIPE_DOWN:
+                return "swipe_down";
+            case GESTURE_INDEX_SWIPE_LEFT:
+                return "swipe_left";
+            case GESTURE_INDEX_SWIPE_RIGHT:
+                return "swipe_right";
+            case GESTURE_INDEX_CAMERA:
+                return "camera";
             default:
-                return -1;
+                return "unknown";
         }
     }
 
+    /* Inverse of gestureIndexToString(), -1 for unknown names */
+    public static int gestureIndexFromString(String name) {
+        for (int index = 0; index < GESTURE_COUNT; index++) {
+            if (gestureIndexToString(index).equals(name)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
     public interface GestureMotionSensorListener {
-        public void onEvent(int gesture, SensorEvent event);
+        /* timestamp is the sensor hub event time, in elapsedRealtimeNanos */
+        public void onEvent(int gesture, long timestamp);
+    }
+
+    private static final class ListenerRecord {
+        final GestureMotionSensorListener listener;
+        final int gestures;
+
+        ListenerRecord(GestureMotionSensorListener listener, int gestures) {
+            this.listener = listener;
+            this.gestures = gestures;
+        }
+    }
+
+    /* Finds and registers for the hub's gesture sensor, replaced by a fake in tests */
+    @VisibleForTesting
+    interface SensorSource {
+        /* Looks the sensor up if it hasn't been found yet, returns whether it's present */
+        public boolean findSensor();
+
+        public boolean hasSensor();
+
+        public boolean registerListener(SensorEventListener listener, int maxReportLatencyUs,
+                Handler handler);
+
+        public void unregisterListener(SensorEventListener listener);
+    }
+
+    private static final class SystemSensorSource implements SensorSource {
+        private final SensorManager mSensorManager;
+        private Sensor mSensor;
+
+        SystemSensorSource(SensorManager sensorManager) {
+            mSensorManager = sensorManager;
+        }
+
+        @Override
+        public boolean findSensor() {
+            if (mSensor == null) {
+                mSensor = getGestureMotionSensor();
+            }
+            return mSensor != null;
+        }
+
+        @Override
+        public boolean hasSensor() {
+            return mSensor != null;
+        }
+
+        @Override
+        public boolean registerListener(SensorEventListener listener, int maxReportLatencyUs,
+                Handler handler) {
+            return mSensorManager.registerListener(listener, mSensor,
+                    SensorManager.SENSOR_DELAY_NORMAL, maxReportLatencyUs, handler);
+        }
+
+        @Override
+        public void unregisterListener(SensorEventListener listener) {
+            mSensorManager.unregisterListener(listener);
+        }
+
+        private Sensor getGestureMotionSensor() {
+            /* TODO: figure out why
+             * mSensorManager.getDefaultSensor(65538);
+             * isn't returning a valid sensor.
+             */
+            Iterator it = mSensorManager.getSensorList(Sensor.TYPE_ALL).iterator();
+            while (it.hasNext()) {
+                Sensor sensor = (Sensor) it.next();
+                if (GESTURE_MOTION_SENSOR_NAME.equals(sensor.getName())) {
+                    return sensor;
+                }
+            }
+            Log.w(TAG, "Unable to find valid gesture motion sensor");
+            return null;
+        }
     }
 
     private GestureMotionSensor(Context context) {
+        this(context, new SystemSensorSource(
+                (SensorManager) context.getSystemService(Context.SENSOR_SERVICE)),
+                new GestureControlNode(CONTROL_PATH));
+    }
+
+    /* Also used to drive the pipeline with a fake sensor and control node */
+    @VisibleForTesting
+    GestureMotionSensor(Context context, SensorSource sensorSource,
+            GestureControlNode controlNode) {
         mContext = context;
-        mEnabledGestures = 0;
-        mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
-        mSensor = getGestureMotionSensor();
-        mListeners = new ArrayList<GestureMotionSensorListener>();
+        mControlNode = controlNode;
+        mSensorSource = sensorSource;
+        mSensorSource.findSensor();
     }
 
     public void enableGesture(int gesture) {
         if (DEBUG) Log.d(TAG, "Enabling");
 
-        mEnabledGestures = mEnabledGestures | gesture;
+        int current;
+        do {
+            current = mEnabledGestures.get();
+        } while (!mEnabledGestures.compareAndSet(current, current | gesture));
+        if (mListening && current != (current | gesture)) {
+            scheduleControlUpdate();
+        }
     }
 
     public void disableGesture(int gesture) {
         if (DEBUG) Log.d(TAG, "Disabling");
 
-        mEnabledGestures = mEnabledGestures & (~gesture);
+        int current;
+        do {
+            current = mEnabledGestures.get();
+        } while (!mEnabledGestures.compareAndSet(current, current & ~gesture));
+        if (mListening && current != (current & ~gesture)) {
+            scheduleControlUpdate();
+        }
+    }
+
+    /* Replaces the whole mask, the control node is only rewritten if it changed */
+    public void setEnabledGestures(int gestures) {
+        if (DEBUG) Log.d(TAG, "Setting " + Integer.toHexString(gestures));
+
+        final int previous = mEnabledGestures.getAndSet(gestures);
+        if (mListening && previous != gestures) {
+            scheduleControlUpdate();
+        }
+    }
+
+    public int getEnabledGestures() {
+        return mEnabledGestures.get();
     }
 
     public static GestureMotionSensor getInstance(Context context) {
@@ -119,70 +324,223 @@ public class GestureMotionSensor {
     }
 
     public void beginListening() {
-        if (!FileUtils.isFileReadable(CONTROL_PATH) || !FileUtils.isFileWritable(CONTROL_PATH)) {
-            Log.w(TAG, "Control path not accessible, unable to disable sensor");
+        if (!mControlNode.write(mEnabledGestures.get())) {
+            Log.w(TAG, "Failed to write control path, unable to enable sensor");
             return;
         }
 
-        if (!FileUtils.writeLine(CONTROL_PATH, Integer.toHexString(mEnabledGestures))) {
+        updateSensorRegistration(getBatchLatencyMs(mEnabledGestures.get()));
+        mListening = true;
+    }
+
+    public void stopListening() {
+        mListening = false;
+        if (!mControlNode.write(0)) {
             Log.w(TAG, "Failed to write control path, unable to disable sensor");
             return;
         }
 
-        mSensorManager.registerListener(mSensorEventListener, mSensor,
-                SensorManager.SENSOR_DELAY_NORMAL, BATCH_LATENCY_IN_MS * 1000);
+        updateSensorRegistration(LATENCY_UNREGISTERED);
     }
 
-    public void stopListening() {
-        if (!FileUtils.isFileReadable(CONTROL_PATH) || !FileUtils.isFileWritable(CONTROL_PATH)) {
-            Log.w(TAG, "Control path not accessible, unable to disable sensor");
-            return;
+    /* Gestures whose events must not be held back in the sensor hub FIFO */
+    public void setLowLatencyGestures(int gestures) {
+        mLowLatencyGestures = gestures;
+        if (mListening) {
+            scheduleControlUpdate();
         }
+    }
 
-        if (!FileUtils.writeLine(CONTROL_PATH, Integer.toHexString(0))) {
-            Log.w(TAG, "Failed to write control path, unable to disable sensor");
+    private int getBatchLatencyMs(int gestures) {
+        return (gestures & mLowLatencyGestures) != 0 ? LOW_BATCH_LATENCY_IN_MS : BATCH_LATENCY_IN_MS;
+    }
+
+    /* Registers again only if the batching latency actually changes */
+    private synchronized void updateSensorRegistration(int latencyMs) {
+        if (latencyMs == mRegisteredLatencyMs) {
             return;
         }
 
-        mSensorManager.unregisterListener(mSensorEventListener);
+        if (mRegisteredLatencyMs != LATENCY_UNREGISTERED) {
+            mSensorSource.unregisterListener(mSensorEventListener);
+        }
+        mRegisteredLatencyMs = LATENCY_UNREGISTERED;
+        if (latencyMs != LATENCY_UNREGISTERED) {
+            if (DEBUG) Log.d(TAG, "Registering with batch latency " + latencyMs + "ms");
+            if (mSensorSource.registerListener(mSensorEventListener, latencyMs * 1000,
+                    mHandler)) {
+                mRegisteredLatencyMs = latencyMs;
+            }
+        }
+    }
+
+    public synchronized int getRegisteredLatencyMs() {
+        return mRegisteredLatencyMs;
+    }
+
+    public boolean isListening() {
+        return mListening;
+    }
+
+    public synchronized boolean hasSensor() {
+        return mSensorSource.hasSensor();
     }
 
+    /* Looks for the sensor again if it wasn't found before, e.g. while the hub was resetting */
+    public synchronized boolean rediscoverSensor() {
+        return mSensorSource.findSensor();
+    }
+
+    /* Writes the control node and registers again from scratch with the current mask */
+    public boolean rearm() {
+        mControlNode.invalidate();
+        updateSensorRegistration(LATENCY_UNREGISTERED);
+        mListening = false;
+        beginListening();
+        return mListening;
+    }
+
+    public GestureControlNode getControlNode() {
+        return mControlNode;
+    }
+
+    /* Mask changes while armed are merged into a single control node write */
+    private void scheduleControlUpdate() {
+        if (mControlUpdatePending.compareAndSet(false, true)) {
+            Handler handler = mHandler != null ? mHandler : mMainHandler;
+            handler.post(mControlUpdateRunnable);
+        }
+    }
+
+    private final Runnable mControlUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mControlUpdatePending.set(false);
+            if (mListening) {
+                final int gestures = mEnabledGestures.get();
+                mControlNode.write(gestures);
+                updateSensorRegistration(getBatchLatencyMs(gestures));
+            }
+        }
+    };
+
     public void registerListener(GestureMotionSensorListener listener) {
-        mListeners.add(listener);
-    }
-
-    private Sensor getGestureMotionSensor() {
-        /* TODO: figure out why
-         * mSensorManager.getDefaultSensor(65538);
-         * isn't returning a valid sensor.
-         */
-        Iterator it = mSensorManager.getSensorList(Sensor.TYPE_ALL).iterator();
-        while (it.hasNext()) {
-            Sensor sensor = (Sensor) it.next();
-            if (GESTURE_MOTION_SENSOR_NAME.equals(sensor.getName())) {
-                return sensor;
+        registerListener(listener, ~0);
+    }
+
+    /* Only gestures contained in the given mask are reported to the listener */
+    public void registerListener(GestureMotionSensorListener listener, int gestures) {
+        synchronized (mListenersLock) {
+            ListenerRecord[] current = mListeners;
+            ListenerRecord[] updated = new ListenerRecord[current.length + 1];
+            int count = 0;
+            for (ListenerRecord record : current) {
+                if (record.listener != listener) {
+                    updated[count++] = record;
+                }
+            }
+            updated[count++] = new ListenerRecord(listener, gestures);
+            mListeners = count == updated.length ? updated : Arrays.copyOf(updated, count);
+        }
+    }
+
+    public void unregisterListener(GestureMotionSensorListener listener) {
+        synchronized (mListenersLock) {
+            ListenerRecord[] current = mListeners;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].listener == listener) {
+                    ListenerRecord[] updated = new ListenerRecord[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    mListeners = updated;
+                    return;
+                }
+            }
+        }
+    }
+
+    /* Deliver sensor events on the given handler's thread, null means the main looper */
+    public void setHandler(Handler handler) {
+        mHandler = handler;
+    }
+
+    /* The handler set by the service, e.g. to load its dispatch thread in benchmarks */
+    @VisibleForTesting
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    /* Must be called before events are delivered or from the dispatch thread */
+    public void setCoalescingWindows(long dedupeWindowMs, long staleThresholdMs) {
+        mCoalescer.setWindows(dedupeWindowMs, staleThresholdMs);
+    }
+
+    public GestureEventCoalescer getCoalescer() {
+        return mCoalescer;
+    }
+
+    public void setFlightRecorder(GestureFlightRecorder recorder) {
+        mRecorder = recorder;
+        mControlNode.setFlightRecorder(recorder);
+    }
+
+    void setClock(GestureClock clock) {
+        mClock = clock;
+    }
+
+    public void setLatencyTracker(GestureLatencyTracker tracker) {
+        mLatencyTracker = tracker;
+    }
+
+    /* Time (elapsedRealtimeNanos) at which the event currently being dispatched arrived */
+    public long getEventReceivedNanos() {
+        return mEventReceivedNanos;
+    }
+
+    private void onSensorEvent(int gesture, long timestamp) {
+        final ListenerRecord[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if ((listeners[i].gestures & gesture) != 0) {
+                listeners[i].listener.onEvent(gesture, timestamp);
             }
         }
-        Log.w(TAG, "Unable to find valid gesture motion sensor");
-        return null;
     }
 
-    private void onSensorEvent(int gesture, SensorEvent event) {
-        for (GestureMotionSensorListener l : mListeners) {
-            l.onEvent(gesture, event);
+    /*
+     * Decodes and dispatches one raw sensor event. SensorEvent can't be
+     * constructed outside the framework, so fakes call this directly.
+     */
+    @VisibleForTesting
+    void dispatchSensorEvent(int sensorEvent, long timestamp, long receivedNanos) {
+        mEventReceivedNanos = receivedNanos;
+        if (DEBUG) Log.d(TAG, "onSensorChanged: got event: " + sensorEvent);
+        int gesture = sensorEventToGesture(sensorEvent);
+        final int enabledGestures = mEnabledGestures.get();
+        if (mRecorder != null) {
+            mRecorder.record(GestureFlightRecorder.TYPE_SENSOR_EVENT, sensorEvent, timestamp);
+        }
+        if ((gesture & enabledGestures) != 0) {
+            /* Only report events which we care about */
+            if (!mCoalescer.accept(gesture, timestamp, receivedNanos)) {
+                if (DEBUG) Log.d(TAG, "Dropping repeated or stale event " + sensorEvent);
+                return;
+            }
+            if (mRecorder != null) {
+                mRecorder.record(GestureFlightRecorder.TYPE_GESTURE, gesture, enabledGestures);
+            }
+            if (mLatencyTracker != null) {
+                mLatencyTracker.record(gestureToIndex(gesture),
+                        GestureLatencyTracker.STAGE_DELIVERY, receivedNanos - timestamp);
+            }
+            onSensorEvent(gesture, timestamp);
         }
     }
 
     private SensorEventListener mSensorEventListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent event) {
-            if (DEBUG) Log.d(TAG, "onSensorChanged: got event: " + (int) event.values[0]);
-            int sensorEvent = (int) event.values[0];
-            int gesture = sensorEventToGesture(sensorEvent);
-            if ((gesture & mEnabledGestures) != 0) {
-                /* Only report events which we care about */
-                onSensorEvent(gesture, event);
-            }
+            dispatchSensorEvent((int) event.values[0], event.timestamp,
+                    mClock.elapsedRealtimeNanos());
         }
 
         @Override
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/*
+ * Drives the sensor towards the state derived from its inputs: the gestures
+ * wanted by the configuration and bound clients, and whether the display
+ * allows arming. Any input change just reconciles again; only the difference
+ * to the current state reaches the control node and the sensor registration.
+ * Must be called from the dispatch thread.
+ */
+public class GestureReconciler {
+
+    private static final boolean DEBUG = false;
+    private static final String TAG = "GestureReconciler";
+
+    private final GestureMotionSensor mSensor;
+    private GestureHealthWatchdog mWatchdog;
+
+    private int mDesiredGestures;
+    private int mReconcileCount;
+    private int mUnchangedCount;
+    private int mMaskChangeCount;
+    private int mArmCount;
+    private int mDisarmCount;
+
+    public GestureReconciler(GestureMotionSensor sensor) {
+        mSensor = sensor;
+    }
+
+    public void setHealthWatchdog(GestureHealthWatchdog watchdog) {
+        mWatchdog = watchdog;
+    }
+
+    /* Returns the gestures that are armed afterwards */
+    public int reconcile(boolean armed, int gestures) {
+        final int desired = armed ? gestures : 0;
+        apply(desired);
+        if (mWatchdog != null) {
+            mWatchdog.setExpectedGestures(desired);
+        }
+        return mSensor.isListening() ? desired : 0;
+    }
+
+    private void apply(int desired) {
+        mReconcileCount++;
+        final boolean listening = mSensor.isListening();
+        mDesiredGestures = desired;
+
+        if (desired == 0) {
+            if (listening) {
+                if (DEBUG) Log.d(TAG, "Disarming");
+                mDisarmCount++;
+                mSensor.setEnabledGestures(0);
+                mSensor.stopListening();
+            } else {
+                mUnchangedCount++;
+            }
+            return;
+        }
+
+        if (listening) {
+            if (mSensor.getEnabledGestures() == desired) {
+                mUnchangedCount++;
+            } else {
+                if (DEBUG) Log.d(TAG, "Rearming with " + Integer.toHexString(desired));
+                mMaskChangeCount++;
+                mSensor.setEnabledGestures(desired);
+            }
+        } else {
+            if (DEBUG) Log.d(TAG, "Arming with " + Integer.toHexString(desired));
+            mArmCount++;
+            mSensor.setEnabledGestures(desired);
+            mSensor.beginListening();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("  reconciler: desired=" + Integer.toHexString(mDesiredGestures)
+                + " runs=" + mReconcileCount + " unchanged=" + mUnchangedCount
+                + " maskChanges=" + mMaskChangeCount
+                + " arms=" + mArmCount + " disarms=" + mDisarmCount);
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.os.Handler;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/*
+ * Matches short gesture combos, e.g. swipe up then swipe right, between the
+ * sensor and the single gesture listener. Patterns are compiled into a
+ * transition table; gestures that can't start a pattern pass straight through,
+ * others are held until a pattern completes or can no longer match. Then the
+ * oldest held gesture is replayed as a single gesture and the rest is matched
+ * again, as it may start another pattern.
+ *
+ * Timeouts are decided on the sensor hub timestamps, so a FIFO flush that
+ * holds a whole combo is matched while it is being drained, and the same
+ * event sequence always gives the same result. A single preallocated
+ * runnable covers the case where no further event arrives.
+ * Events must be delivered on the handler's thread.
+ */
+public class GestureSequenceRecognizer
+        implements GestureMotionSensor.GestureMotionSensorListener {
+
+    private static final boolean DEBUG = false;
+    private static final String TAG = "GestureSequenceRecognizer";
+
+    public static final int MAX_PATTERN_LENGTH = 4;
+
+    /* Events can sit in the sensor hub FIFO for up to the batch latency */
+    private static final long TIMER_GRACE_MS = GestureMotionSensor.BATCH_LATENCY_IN_MS;
+
+    public interface Callbacks {
+        /* A gesture was held back waiting for the rest of a pattern */
+        public void onSequencePending(int gestureIndex, long timeoutMs);
+
+        /* A full pattern matched, gestureIndex is its last gesture */
+        public void onSequence(int action, int gestureIndex, long timestamp);
+    }
+
+    /* Immutable compiled patterns, state 0 is the start state */
+    private static final class Table {
+        static final Table EMPTY = new Table(new int[GestureMotionSensor.GESTURE_COUNT],
+                new int[] { -1 }, 0, 0);
+
+        /* state * GESTURE_COUNT + gesture index -> next state, 0 for no transition */
+        final int[] next;
+        /* state -> action of the pattern ending here, -1 if none */
+        final int[] accept;
+        /* Gestures that occur in any pattern */
+        final int gestures;
+        final int patternCount;
+
+        Table(int[] next, int[] accept, int gestures, int patternCount) {
+            this.next = next;
+            this.accept = accept;
+            this.gestures = gestures;
+            this.patternCount = patternCount;
+        }
+
+        boolean hasTransitions(int state) {
+            final int base = state * GestureMotionSensor.GESTURE_COUNT;
+            for (int i = 0; i < GestureMotionSensor.GESTURE_COUNT; i++) {
+                if (next[base + i] != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final Handler mHandler;
+    private final GestureClock mClock;
+    private final GestureMotionSensor.GestureMotionSensorListener mSingleListener;
+    private final Callbacks mCallbacks;
+    private final long mTimeoutNanos;
+
+    private volatile Table mTable = Table.EMPTY;
+    /* Set by setPatterns(), picked up on the handler's thread */
+    private volatile boolean mTableChanged;
+
+    /* Matching state, only touched on the handler's thread */
+    private Table mActiveTable = Table.EMPTY;
+    private final int[] mPendingGestures = new int[MAX_PATTERN_LENGTH];
+    private final long[] mPendingTimestamps = new long[MAX_PATTERN_LENGTH];
+    private int mPendingCount;
+
+    private int mMatchCount;
+    private int mReplayCount;
+    private int mTimeoutCount;
+
+    public GestureSequenceRecognizer(Handler handler, GestureClock clock,
+            GestureMotionSensor.GestureMotionSensorListener singleListener,
+            Callbacks callbacks, long timeoutMs) {
+        mHandler = handler;
+        mClock = clock;
+        mSingleListener = singleListener;
+        mCallbacks = callbacks;
+        mTimeoutNanos = timeoutMs * 1000000;
+    }
+
+    /*
+     * Patterns are separated by ';', each one a comma separated list of gesture
+     * names followed by ':' and an action name, e.g. "swipe_up,swipe_right:torch".
+     * Invalid patterns are skipped. A gesture can't directly follow itself: the
+     * event coalescer merges such repeats, as the hub reports them for one gesture.
+     */
+    public void setPatterns(String spec) {
+        mTable = compile(spec);
+        mTableChanged = true;
+    }
+
+    /* Gestures that have to be armed for the patterns */
+    public int getGestures() {
+        return mTable.gestures;
+    }
+
+    private static Table compile(String spec) {
+        if (TextUtils.isEmpty(spec)) {
+            return Table.EMPTY;
+        }
+
+        final String[] patterns = spec.split(";");
+        final int maxStates = 1 + patterns.length * MAX_PATTERN_LENGTH;
+        final int[] next = new int[maxStates * GestureMotionSensor.GESTURE_COUNT];
+        final int[] accept = new int[maxStates];
+        Arrays.fill(accept, -1);
+        int states = 1;
+        int gestures = 0;
+        int patternCount = 0;
+
+        for (String pattern : patterns) {
+            pattern = pattern.trim();
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            final int separator = pattern.lastIndexOf(':');
+            final String[] names = separator > 0
+                    ? pattern.substring(0, separator).split(",") : null;
+            final int action = separator > 0
+                    ? GestureActionRegistry.actionFromName(pattern.substring(separator + 1).trim())
+                    : -1;
+            if (names == null || names.length < 2 || names.length > MAX_PATTERN_LENGTH
+                    || action <= GestureConfig.ACTION_NONE
+                    || action == GestureConfig.ACTION_LAUNCH_APP) {
+                Log.w(TAG, "Ignoring invalid pattern: " + pattern);
+                continue;
+            }
+
+            final int[] indices = new int[names.length];
+            boolean valid = true;
+            boolean repeated = false;
+            for (int i = 0; i < names.length && valid; i++) {
+                indices[i] = GestureMotionSensor.gestureIndexFromString(names[i].trim());
+                valid = indices[i] >= 0;
+                repeated |= i > 0 && indices[i] == indices[i - 1];
+            }
+            if (!valid) {
+                Log.w(TAG, "Ignoring pattern with unknown gesture: " + pattern);
+                continue;
+            }
+            if (repeated) {
+                Log.w(TAG, "Ignoring pattern with a repeated gesture: " + pattern);
+                continue;
+            }
+
+            int state = 0;
+            for (int index : indices) {
+                final int slot = state * GestureMotionSensor.GESTURE_COUNT + index;
+                if (next[slot] == 0) {
+                    next[slot] = states++;
+                }
+                state = next[slot];
+                gestures |= GestureMotionSensor.indexToGesture(index);
+            }
+            if (accept[state] >= 0) {
+                Log.w(TAG, "Duplicate pattern, keeping the first: " + pattern);
+                continue;
+            }
+            accept[state] = action;
+            patternCount++;
+        }
+
+        if (patternCount == 0) {
+            return Table.EMPTY;
+        }
+        return new Table(Arrays.copyOf(next, states * GestureMotionSensor.GESTURE_COUNT),
+                Arrays.copyOf(accept, states), gestures, patternCount);
+    }
+
+    @Override
+    public void onEvent(int gesture, long timestamp) {
+        if (mTableChanged) {
+            mTableChanged = false;
+            reset();
+            mActiveTable = mTable;
+        }
+
+        final Table table = mActiveTable;
+        final int index = GestureMotionSensor.gestureToIndex(gesture);
+        if (index < 0 || (table.gestures & gesture) == 0) {
+            if (mPendingCount > 0) {
+                resolve();
+            }
+            mSingleListener.onEvent(gesture, timestamp);
+            return;
+        }
+
+        if (mPendingCount > 0
+                && timestamp - mPendingTimestamps[mPendingCount - 1] > mTimeoutNanos) {
+            /* The previous partial match ran out of time before this gesture */
+            mTimeoutCount++;
+            resolve();
+        }
+
+        if (mPendingCount == 0 && table.next[index] == 0) {
+            /* Can't start a pattern */
+            mSingleListener.onEvent(gesture, timestamp);
+            return;
+        }
+
+        /* A held match has room for one more, it would have completed otherwise */
+        mPendingGestures[mPendingCount] = gesture;
+        mPendingTimestamps[mPendingCount] = timestamp;
+        mPendingCount++;
+        match(false, 1);
+
+        if (mPendingCount == 0) {
+            return;
+        }
+        /* Whatever is still held ends with this gesture */
+        mCallbacks.onSequencePending(index, mTimeoutNanos / 1000000 + TIMER_GRACE_MS);
+        scheduleTimeout();
+    }
+
+    private void scheduleTimeout() {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        final long deadline = getTimerDeadlineNanos();
+        final long delayMs = Math.max(0, (deadline - mClock.elapsedRealtimeNanos()) / 1000000);
+        mHandler.postDelayed(mTimeoutRunnable, delayMs);
+    }
+
+    private long getTimerDeadlineNanos() {
+        return mPendingTimestamps[mPendingCount - 1] + mTimeoutNanos + TIMER_GRACE_MS * 1000000;
+    }
+
+    /* Ends the current partial match, no further gesture can continue it */
+    private void resolve() {
+        match(true, 0);
+    }
+
+    /*
+     * Matches the held gestures from the start state. Where the walk breaks
+     * off, a pattern ending there fires, otherwise the oldest gesture is
+     * replayed as a single one, and the rest is matched again: a gesture held
+     * for one pattern may still start another. Unless flushing, a trailing
+     * partial match stays held. The last fresh gestures weren't held before
+     * and don't count as replays.
+     */
+    private void match(boolean flush, int fresh) {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        final Table table = mActiveTable;
+        final int count = mPendingCount;
+        int start = 0;
+        while (start < count) {
+            int state = 0;
+            int end = start;
+            while (end < count) {
+                final int next = table.next[state * GestureMotionSensor.GESTURE_COUNT
+                        + GestureMotionSensor.gestureToIndex(mPendingGestures[end])];
+                if (next == 0) {
+                    break;
+                }
+                state = next;
+                end++;
+            }
+
+            if (end == count && !flush && table.hasTransitions(state)) {
+                /* Still waiting for the rest of a pattern */
+                mPendingCount = count - start;
+                System.arraycopy(mPendingGestures, start, mPendingGestures, 0, mPendingCount);
+                System.arraycopy(mPendingTimestamps, start, mPendingTimestamps, 0,
+                        mPendingCount);
+                return;
+            }
+
+            final int action = table.accept[state];
+            if (action >= 0) {
+                if (DEBUG) Log.d(TAG, "Matched pattern, action " + action);
+                mMatchCount++;
+                mCallbacks.onSequence(action,
+                        GestureMotionSensor.gestureToIndex(mPendingGestures[end - 1]),
+                        mPendingTimestamps[end - 1]);
+                start = end;
+            } else {
+                if (start < count - fresh) {
+                    mReplayCount++;
+                }
+                mSingleListener.onEvent(mPendingGestures[start], mPendingTimestamps[start]);
+                start++;
+            }
+        }
+        mPendingCount = 0;
+    }
+
+    private void reset() {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        if (mPendingCount > 0) {
+            resolve();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        final Table table = mTable;
+        pw.println("  sequences: patterns=" + table.patternCount
+                + " states=" + table.accept.length
+                + " gestures=" + Integer.toHexString(table.gestures)
+                + " timeout=" + mTimeoutNanos / 1000000 + "ms"
+                + " matched=" + mMatchCount + " replayed=" + mReplayCount
+                + " timedOut=" + mTimeoutCount);
+    }
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mPendingCount == 0) {
+                return;
+            }
+            if (mClock.elapsedRealtimeNanos() < getTimerDeadlineNanos()) {
+                /* Woke up early, e.g. the handler was busy draining events */
+                scheduleTimeout();
+                return;
+            }
+            mTimeoutCount++;
+            resolve();
+        }
+    };
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/*
+ * Shares the single gesture sensor registration with bound clients. Events are
+ * collected on the dispatch thread and handed to every interested client in
+ * one oneway call per batch, so a slow or dead client can't hold up the others.
+ */
+public class GestureSubscriptionManager
+        implements GestureMotionSensor.GestureMotionSensorListener {
+
+    private static final boolean DEBUG = false;
+    private static final String TAG = "GestureSubscriptions";
+
+    private static final int MAX_BATCH = 16;
+
+    public interface Callbacks {
+        /* The union of all subscribed gestures changed, called on a binder thread */
+        public void onSubscriptionsChanged(int gestures);
+    }
+
+    private final Handler mHandler;
+    private final Callbacks mCallbacks;
+    private final RemoteCallbackList<IGestureCallback> mClients =
+            new RemoteCallbackList<IGestureCallback>() {
+        @Override
+        public void onCallbackDied(IGestureCallback callback, Object cookie) {
+            /* Binder thread, races with registrations just like the calls below */
+            synchronized (mClients) {
+                mDeadClientCount++;
+                updateSubscribedGestures();
+            }
+        }
+    };
+
+    /* Written under mClients, read lock-free */
+    private volatile int mSubscribedGestures;
+    private volatile int mDeadClientCount;
+
+    /* Only touched on the dispatch thread */
+    private final int[] mPendingGestures = new int[MAX_BATCH];
+    private final long[] mPendingTimestamps = new long[MAX_BATCH];
+    private int mPendingCount;
+    private int mBatchCount;
+    private int mDeliveredCount;
+    private int mFailedCount;
+
+    public GestureSubscriptionManager(Handler handler, Callbacks callbacks) {
+        mHandler = handler;
+        mCallbacks = callbacks;
+    }
+
+    public IBinder getBinder() {
+        return mBinder;
+    }
+
+    public int getSubscribedGestures() {
+        return mSubscribedGestures;
+    }
+
+    public void kill() {
+        synchronized (mClients) {
+            mClients.kill();
+            mSubscribedGestures = 0;
+        }
+    }
+
+    @Override
+    public void onEvent(int gesture, long timestamp) {
+        if ((gesture & mSubscribedGestures) == 0) {
+            return;
+        }
+
+        if (mPendingCount == MAX_BATCH) {
+            flush();
+        }
+        mPendingGestures[mPendingCount] = gesture;
+        mPendingTimestamps[mPendingCount] = timestamp;
+        mPendingCount++;
+        if (mPendingCount == 1) {
+            /* Events of the same FIFO flush are delivered before this runs */
+            mHandler.post(mFlushRunnable);
+        }
+    }
+
+    private void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        final int count = mPendingCount;
+        mPendingCount = 0;
+        if (count == 0) {
+            return;
+        }
+        mBatchCount++;
+
+        final int clients = mClients.beginBroadcast();
+        try {
+            for (int i = 0; i < clients; i++) {
+                final int mask = (Integer) mClients.getBroadcastCookie(i);
+                int matching = 0;
+                for (int j = 0; j < count; j++) {
+                    if ((mPendingGestures[j] & mask) != 0) {
+                        matching++;
+                    }
+                }
+                if (matching == 0) {
+                    continue;
+                }
+
+                final int[] gestures = new int[matching];
+                final long[] timestamps = new long[matching];
+                for (int j = 0, k = 0; j < count; j++) {
+                    if ((mPendingGestures[j] & mask) != 0) {
+                        gestures[k] = mPendingGestures[j];
+                        timestamps[k] = mPendingTimestamps[j];
+                        k++;
+                    }
+                }
+
+                try {
+                    mClients.getBroadcastItem(i).onGestures(gestures, timestamps);
+                    mDeliveredCount += matching;
+                } catch (RemoteException e) {
+                    /* The client is dead, RemoteCallbackList drops it */
+                    mFailedCount++;
+                }
+            }
+        } finally {
+            mClients.finishBroadcast();
+        }
+    }
+
+    /* Must be called with mClients held */
+    private void updateSubscribedGestures() {
+        int gestures = 0;
+        final int clients = mClients.getRegisteredCallbackCount();
+        for (int i = 0; i < clients; i++) {
+            Object cookie = mClients.getRegisteredCallbackCookie(i);
+            if (cookie != null) {
+                gestures |= (Integer) cookie;
+            }
+        }
+
+        if (gestures != mSubscribedGestures) {
+            mSubscribedGestures = gestures;
+            mCallbacks.onSubscriptionsChanged(gestures);
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        final int clients = mClients.getRegisteredCallbackCount();
+        pw.println("  subscriptions: clients=" + clients
+                + " gestures=" + Integer.toHexString(mSubscribedGestures)
+                + " batches=" + mBatchCount + " delivered=" + mDeliveredCount
+                + " failed=" + mFailedCount + " dead=" + mDeadClientCount);
+        for (int i = 0; i < clients; i++) {
+            Object cookie = mClients.getRegisteredCallbackCookie(i);
+            pw.println("    " + mClients.getRegisteredCallbackItem(i).asBinder() + " gestures="
+                    + (cookie != null ? Integer.toHexString((Integer) cookie) : null));
+        }
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final IGestureService.Stub mBinder = new IGestureService.Stub() {
+        @Override
+        public void registerCallback(IGestureCallback callback, int gestures) {
+            if (callback == null) {
+                throw new IllegalArgumentException("callback must not be null");
+            }
+            if (DEBUG) Log.d(TAG, "Registering " + callback.asBinder() + " from uid "
+                    + Binder.getCallingUid() + " for " + Integer.toHexString(gestures));
+            synchronized (mClients) {
+                /* Replaces the mask of an existing registration */
+                mClients.unregister(callback);
+                mClients.register(callback, gestures);
+                updateSubscribedGestures();
+            }
+        }
+
+        @Override
+        public void unregisterCallback(IGestureCallback callback) {
+            synchronized (mClients) {
+                mClients.unregister(callback);
+                updateSubscribedGestures();
+            }
+        }
+    };
+}
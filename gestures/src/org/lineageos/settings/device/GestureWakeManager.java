@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+
+import java.io.PrintWriter;
+
+/*
+ * Owns the gesture wakelock and device wake-ups. Overlapping wakelock requests
+ * extend a single timed hold instead of stacking acquisitions, and repeated
+ * wake-up requests are merged until the display goes off again.
+ * Wakelock and wake-up requests must come from the dispatch thread.
+ */
+public class GestureWakeManager {
+
+    /* Wake-ups requested this soon after the previous one are skipped */
+    private static final long WAKE_UP_COALESCE_MS = 1000;
+
+    /* Wakelock and wake-up calls, replaced by a fake in tests */
+    interface PowerSource {
+        public void acquireWakeLock(long timeoutMs);
+
+        public void wakeUp(long time);
+    }
+
+    private static final class SystemPowerSource implements PowerSource {
+        private final PowerManager mPowerManager;
+        private final WakeLock mWakeLock;
+
+        SystemPowerSource(PowerManager powerManager, String tag) {
+            mPowerManager = powerManager;
+            mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, tag);
+            mWakeLock.setReferenceCounted(false);
+        }
+
+        @Override
+        public void acquireWakeLock(long timeoutMs) {
+            mWakeLock.acquire(timeoutMs);
+        }
+
+        @Override
+        public void wakeUp(long time) {
+            mPowerManager.wakeUp(time);
+        }
+    }
+
+    private final PowerSource mPowerSource;
+    private final GestureClock mClock;
+
+    private long mWakeLockExpiryMs;
+    private volatile long mLastWakeUpMs = -1;
+
+    private final int[] mWakeLockCounts = new int[GestureMotionSensor.GESTURE_COUNT];
+    private final long[] mWakeLockDurationsMs = new long[GestureMotionSensor.GESTURE_COUNT];
+    private int mWakeLockMergedCount;
+    private int mWakeUpCount;
+    private int mWakeUpMergedCount;
+
+    public GestureWakeManager(PowerManager powerManager, String tag, GestureClock clock) {
+        this(new SystemPowerSource(powerManager, tag), clock);
+    }
+
+    /* Also used to count wakelocks and wake-ups with a fake */
+    GestureWakeManager(PowerSource powerSource, GestureClock clock) {
+        mPowerSource = powerSource;
+        mClock = clock;
+    }
+
+    /*
+     * Makes sure the wakelock is held for at least durationMs from now.
+     * Returns by how many milliseconds the hold was extended.
+     */
+    public long holdWakeLock(int gestureIndex, long durationMs) {
+        final long now = mClock.uptimeMillis();
+        final long expiry = now + durationMs;
+        if (expiry <= mWakeLockExpiryMs) {
+            mWakeLockMergedCount++;
+            return 0;
+        }
+
+        final boolean held = mWakeLockExpiryMs > now;
+        if (held) {
+            mWakeLockMergedCount++;
+        } else if (gestureIndex >= 0) {
+            mWakeLockCounts[gestureIndex]++;
+        }
+        final long extension = held ? expiry - mWakeLockExpiryMs : durationMs;
+        if (gestureIndex >= 0) {
+            mWakeLockDurationsMs[gestureIndex] += extension;
+        }
+        mWakeLockExpiryMs = expiry;
+        mPowerSource.acquireWakeLock(durationMs);
+        return extension;
+    }
+
+    /* Returns false if the request was merged into a recent wake-up */
+    public boolean wakeUp() {
+        final long now = mClock.uptimeMillis();
+        final long last = mLastWakeUpMs;
+        if (last >= 0 && now - last < WAKE_UP_COALESCE_MS) {
+            mWakeUpMergedCount++;
+            return false;
+        }
+
+        mLastWakeUpMs = now;
+        mWakeUpCount++;
+        mPowerSource.wakeUp(now);
+        return true;
+    }
+
+    /* The display went off, so the next wake-up request must not be skipped */
+    public void onDisplayOff() {
+        mLastWakeUpMs = -1;
+    }
+
+    int getWakeUpCount() {
+        return mWakeUpCount;
+    }
+
+    int getWakeUpMergedCount() {
+        return mWakeUpMergedCount;
+    }
+
+    int getWakeLockCount(int gestureIndex) {
+        return mWakeLockCounts[gestureIndex];
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("  wake-ups=" + mWakeUpCount + " merged=" + mWakeUpMergedCount);
+        pw.println("  wakelock merged=" + mWakeLockMergedCount);
+        for (int index = 0; index < GestureMotionSensor.GESTURE_COUNT; index++) {
+            if (mWakeLockCounts[index] == 0 && mWakeLockDurationsMs[index] == 0) {
+                continue;
+            }
+            pw.println("    " + GestureMotionSensor.gestureIndexToString(index)
+                    + ": wakelocks=" + mWakeLockCounts[index]
+                    + " held=" + mWakeLockDurationsMs[index] + "ms");
+        }
+    }
+}
@@ -25,21 +25,35 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.hardware.SensorEvent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.database.ContentObserver;
+import android.hardware.SensorManager;
 import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraAccessException;
+import android.hardware.display.DisplayManager;
 import android.media.AudioManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
-import android.os.PowerManager.WakeLock;
-import android.os.SystemClock;
+import android.os.Process;
+import android.os.SystemProperties;
+import android.os.UserManager;
 import android.os.UserHandle;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.provider.Settings;
 import android.util.Log;
+import android.view.KeyEvent;
+
+import com.android.internal.os.BackgroundThread;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 
 import lineageos.providers.LineageSettings;
 
@@ -49,53 +63,66 @@ public class HtcGestureService extends Service {
 
     public static final String TAG = "GestureService";
 
-    private static final String KEY_SWIPE_UP = "swipe_up_action_key";
-    private static final String KEY_SWIPE_DOWN = "swipe_down_action_key";
-    private static final String KEY_SWIPE_LEFT = "swipe_left_action_key";
-    private static final String KEY_SWIPE_RIGHT = "swipe_right_action_key";
+    static final String KEY_SWIPE_UP = "swipe_up_action_key";
+    static final String KEY_SWIPE_DOWN = "swipe_down_action_key";
+    static final String KEY_SWIPE_LEFT = "swipe_left_action_key";
+    static final String KEY_SWIPE_RIGHT = "swipe_right_action_key";
+    /* Intent URIs launched by ACTION_LAUNCH_APP */
+    static final String KEY_SWIPE_UP_TARGET = "swipe_up_target_key";
+    static final String KEY_SWIPE_DOWN_TARGET = "swipe_down_target_key";
+    static final String KEY_SWIPE_LEFT_TARGET = "swipe_left_target_key";
+    static final String KEY_SWIPE_RIGHT_TARGET = "swipe_right_target_key";
+    private static final String KEY_POCKET_GATE = "pocket_gate_key";
+    static final String KEY_SEQUENCES = "gesture_sequences_key";
+
+    /* Deliver and handle gesture events on a dedicated thread instead of the main looper */
+    private static final String PROP_DISPATCH_THREAD = "persist.gestures.dispatch_thread";
 
-    private static final int SENSOR_WAKELOCK_DURATION = 200;
+    /* Resolve the camera launch intent ahead of time instead of when the gesture fires */
+    private static final String PROP_CAMERA_PREWARM = "persist.gestures.camera_prewarm";
 
-    private static final int ACTION_NONE = 0;
-    private static final int ACTION_CAMERA = 1;
-    private static final int ACTION_TORCH = 2;
+    private static final String FLIGHT_RECORDER_FILE = "gesture_flight_recorder";
+    /* In device protected storage, also read by the settings */
+    static final String ENERGY_STATS_FILE = "gesture_energy_stats";
 
     private Context mContext;
+    private HandlerThread mDispatchThread;
+    private Handler mDispatchHandler;
     private GestureMotionSensor mGestureSensor;
     private PowerManager mPowerManager;
-    private WakeLock mSensorWakeLock;
+    private GestureWakeManager mWakeManager;
     private CameraManager mCameraManager;
-    private String mTorchCameraId;
-    private boolean mTorchEnabled = false;
+    private TorchController mTorchController;
     private AudioManager mAudioManager;
-    private Vibrator mVibrator;
-
-    private int mSwipeUpAction;
-    private int mSwipeDownAction;
-    private int mSwipeLeftAction;
-    private int mSwipeRightAction;
-
-    private GestureMotionSensor.GestureMotionSensorListener mListener =
-        new GestureMotionSensor.GestureMotionSensorListener() {
-        @Override
-        public void onEvent(int type, SensorEvent event) {
-            if (DEBUG) Log.d(TAG, "Received event: " + type);
-            switch (type) {
-                case GestureMotionSensor.SENSOR_GESTURE_DOUBLE_TAP:
-                    mPowerManager.wakeUp(SystemClock.uptimeMillis());
-                    break;
-                case GestureMotionSensor.SENSOR_GESTURE_SWIPE_UP:
-                case GestureMotionSensor.SENSOR_GESTURE_SWIPE_DOWN:
-                case GestureMotionSensor.SENSOR_GESTURE_SWIPE_LEFT:
-                case GestureMotionSensor.SENSOR_GESTURE_SWIPE_RIGHT:
-                    handleGestureAction(gestureToAction(type));
-                    break;
-                case GestureMotionSensor.SENSOR_GESTURE_CAMERA:
-                    handleCameraActivation();
-                    break;
-            }
-        }
-    };
+    private volatile GestureHaptics mHaptics;
+    private Handler mMainHandler;
+
+    /* Startup milestones, in elapsedRealtime milliseconds */
+    private long mCreateTimeMs;
+    private long mReadyTimeMs;
+    private volatile long mDeferredInitTimeMs;
+    private long mFirstArmedTimeMs;
+    private boolean mFirstArmedLocked;
+
+    private SharedPreferences mPrefs;
+    private boolean mCameraPrewarmEnabled;
+    /* Resolved on the background thread when the target may change, used when dispatching */
+    private volatile Intent mCameraIntent;
+    private GestureArmingController mArmingController;
+    private GestureFlightRecorder mRecorder;
+    private GestureSubscriptionManager mSubscriptions;
+    private GestureReconciler mReconciler;
+    private GestureHealthWatchdog mWatchdog;
+    private GestureActionRegistry mActionRegistry;
+    private GestureEnergyStats mEnergyStats;
+    private GestureDispatcher mDispatcher;
+    /* The dispatch thread's handler, or the main thread's without one */
+    private Handler mEventHandler;
+    private final GestureLatencyTracker mLatencyTracker = new GestureLatencyTracker();
+    private final GestureClock mClock = GestureClock.SYSTEM;
+
+    /* Rebuilt on the main thread whenever an input changes, read lock-free everywhere */
+    private volatile GestureConfig mConfig;
 
     @Override
     public void onCreate() {
@@ -103,242 +130,519 @@ public class HtcGestureService extends Service {
         super.onCreate();
 
         mContext = this;
+        mCreateTimeMs = getElapsedRealtimeMs();
+        mMainHandler = new Handler();
+        if (SystemProperties.getBoolean(PROP_DISPATCH_THREAD, true)) {
+            mDispatchThread = new HandlerThread("HtcGestureDispatch",
+                    Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            mDispatchThread.start();
+            mDispatchHandler = new Handler(mDispatchThread.getLooper());
+        }
+        mEventHandler = mDispatchHandler != null ? mDispatchHandler : mMainHandler;
         mGestureSensor = GestureMotionSensor.getInstance(mContext);
-        mGestureSensor.registerListener(mListener);
-        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-        loadPreferences(sharedPrefs);
-        sharedPrefs.registerOnSharedPreferenceChangeListener(mPrefListener);
+        try {
+            mRecorder = new GestureFlightRecorder(
+                    new File(mContext.createDeviceProtectedStorageContext().getFilesDir(),
+                            FLIGHT_RECORDER_FILE),
+                    GestureFlightRecorder.DEFAULT_CAPACITY, mClock);
+            mGestureSensor.setFlightRecorder(mRecorder);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to map flight recorder", e);
+        }
+        mEnergyStats = new GestureEnergyStats(
+                new File(mContext.createDeviceProtectedStorageContext().getFilesDir(),
+                        ENERGY_STATS_FILE),
+                BackgroundThread.getHandler(), mClock,
+                getResources().getInteger(R.integer.config_gestureFalsePositiveWindowMs));
+        mGestureSensor.setHandler(mDispatchHandler);
+        mGestureSensor.setLatencyTracker(mLatencyTracker);
+        mGestureSensor.setCoalescingWindows(
+                getResources().getInteger(R.integer.config_gestureDedupeWindowMs),
+                getResources().getInteger(R.integer.config_gestureStaleThresholdMs));
+        mReconciler = new GestureReconciler(mGestureSensor);
+        mWatchdog = new GestureHealthWatchdog(mGestureSensor, mGestureSensor.getControlNode(),
+                mEventHandler, mClock,
+                getResources().getBoolean(R.bool.config_gestureVerifyControlNode));
+        mReconciler.setHealthWatchdog(mWatchdog);
+        /* Start looking for the sensor again right away if it's missing */
+        mWatchdog.setExpectedGestures(0);
+        mActionRegistry = new GestureActionRegistry(mActionHost, mClock);
         mPowerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
-        mSensorWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "HtcGestureWakeLock");
-        mCameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
-        mCameraManager.registerTorchCallback(mTorchCallback, null);
-        mTorchCameraId = getTorchCameraId();
+        mWakeManager = new GestureWakeManager(mPowerManager, "HtcGestureWakeLock", mClock);
+        mDispatcher = new GestureDispatcher(mGestureSensor, mActionRegistry, mWakeManager,
+                mEnergyStats, mLatencyTracker, new PocketDetector.SensorProximitySource(
+                        mContext.getSystemService(SensorManager.class)),
+                mEventHandler, mClock,
+                getResources().getInteger(R.integer.config_gestureSequenceTimeoutMs));
+        mDispatcher.setFlightRecorder(mRecorder);
+        mGestureSensor.registerListener(mDispatcher);
+        mSubscriptions = new GestureSubscriptionManager(mEventHandler, mSubscriptionCallbacks);
+        /* Reconciling reads the arming state, so this has to exist before the first setConfig() */
+        mArmingController = new GestureArmingController(
+                mContext.getSystemService(DisplayManager.class), mArmingCallbacks, mClock);
         mAudioManager = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
-        mVibrator = (Vibrator) mContext.getSystemService(Context.VIBRATOR_SERVICE);
+        mPrefs = getPreferences(mContext);
+        mDispatcher.setSequencePatterns(mPrefs.getString(KEY_SEQUENCES, null));
+        /* Cheap to read, and the first gesture must not vibrate in silent mode */
+        setConfig(new GestureConfig(loadActions(mPrefs), loadTargets(mPrefs),
+                readDoubleTapEnabled(), readHapticFeedbackEnabled(),
+                mAudioManager.getRingerMode(), mPrefs.getBoolean(KEY_POCKET_GATE, false)));
+        mPrefs.registerOnSharedPreferenceChangeListener(mPrefListener);
+        mContext.getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(Settings.Secure.DOUBLE_TAP_TO_WAKE), false,
+                mSettingsObserver);
+        mContext.getContentResolver().registerContentObserver(
+                LineageSettings.System.getUriFor(
+                        LineageSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK), false,
+                mSettingsObserver);
+        mContext.registerReceiver(mRingerModeReceiver,
+                new IntentFilter(AudioManager.RINGER_MODE_CHANGED_ACTION));
+        mContext.registerReceiver(mUserPresentReceiver,
+                new IntentFilter(Intent.ACTION_USER_PRESENT));
+        mCameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+        mTorchController = new TorchController(mCameraManager, mEventHandler, mClock);
+        mTorchController.setLatencyTracker(mLatencyTracker);
+        mTorchController.setEnergyStats(mEnergyStats);
+        mCameraPrewarmEnabled = SystemProperties.getBoolean(PROP_CAMERA_PREWARM, true);
+        if (mCameraPrewarmEnabled) {
+            IntentFilter packageFilter = new IntentFilter();
+            packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            packageFilter.addDataScheme("package");
+            mContext.registerReceiver(mCameraTargetReceiver, packageFilter);
+            IntentFilter targetFilter = new IntentFilter();
+            targetFilter.addAction(Intent.ACTION_PREFERRED_ACTIVITY_CHANGED);
+            targetFilter.addAction(Intent.ACTION_USER_SWITCHED);
+            /* Camera apps that aren't direct boot aware only resolve once unlocked */
+            targetFilter.addAction(Intent.ACTION_USER_UNLOCKED);
+            mContext.registerReceiver(mCameraTargetReceiver, targetFilter);
+            refreshCameraIntent();
+        }
+        mReadyTimeMs = getElapsedRealtimeMs();
+        Log.i(TAG, "Gestures ready " + (mReadyTimeMs - mCreateTimeMs) + "ms after create, "
+                + mReadyTimeMs + "ms after boot");
+
+        /* Everything below isn't needed to arm the sensor, keep it off the dispatch thread */
+        BackgroundThread.getHandler().post(mDeferredInit);
     }
 
+    private final Runnable mDeferredInit = new Runnable() {
+        @Override
+        public void run() {
+            mTorchController.start(BackgroundThread.getHandler());
+            Vibrator vibrator = (Vibrator) mContext.getSystemService(Context.VIBRATOR_SERVICE);
+            if (vibrator != null && vibrator.hasVibrator()) {
+                /* Vibrate from the main thread, off the dispatch path */
+                mHaptics = new GestureHaptics(vibrator, getResources(), mMainHandler);
+            }
+            mDeferredInitTimeMs = getElapsedRealtimeMs();
+        }
+    };
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (DEBUG) Log.d(TAG, "Starting service");
-        IntentFilter screenStateFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
-        screenStateFilter.addAction(Intent.ACTION_SCREEN_OFF);
-        mContext.registerReceiver(mScreenStateReceiver, screenStateFilter);
+        if (intent != null && Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            /* Preferences may just have been migrated to device protected storage */
+            reloadPreferences();
+        }
+        /* No-op once started, also arms right away if the display is already off */
+        mArmingController.start(mDispatchHandler);
         return START_STICKY;
     }
 
+    /* Gesture preferences live in device protected storage, so they're usable before unlock */
+    public static SharedPreferences getPreferences(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(
+                context.createDeviceProtectedStorageContext());
+    }
+
+    /* Moves preferences written by older versions out of credential encrypted storage */
+    public static void migratePreferences(Context context) {
+        final String name = context.getPackageName() + "_preferences";
+        if (!context.createDeviceProtectedStorageContext()
+                .moveSharedPreferencesFrom(context, name)) {
+            Log.w(TAG, "Failed to migrate preferences to device protected storage");
+        }
+    }
+
+    private void reloadPreferences() {
+        mPrefs.unregisterOnSharedPreferenceChangeListener(mPrefListener);
+        mPrefs = getPreferences(mContext);
+        mPrefs.registerOnSharedPreferenceChangeListener(mPrefListener);
+        mDispatcher.setSequencePatterns(mPrefs.getString(KEY_SEQUENCES, null));
+        setConfig(mConfig.withActions(loadActions(mPrefs), loadTargets(mPrefs))
+                .withPocketGateEnabled(mPrefs.getBoolean(KEY_POCKET_GATE, false)));
+    }
+
     @Override
     public void onDestroy() {
         if (DEBUG) Log.d(TAG, "Destroying service");
         super.onDestroy();
-        unregisterReceiver(mScreenStateReceiver);
+        mArmingController.stop();
+        BackgroundThread.getHandler().removeCallbacks(mDeferredInit);
+        unregisterReceiver(mRingerModeReceiver);
+        unregisterReceiver(mUserPresentReceiver);
+        if (mCameraPrewarmEnabled) {
+            unregisterReceiver(mCameraTargetReceiver);
+            BackgroundThread.getHandler().removeCallbacks(mCameraIntentRefresh);
+        }
+        mContext.getContentResolver().unregisterContentObserver(mSettingsObserver);
+        mPrefs.unregisterOnSharedPreferenceChangeListener(mPrefListener);
+        mTorchController.stop();
+        mSubscriptions.kill();
+        mGestureSensor.unregisterListener(mSubscriptions);
+        mGestureSensor.unregisterListener(mDispatcher);
+        mGestureSensor.setHandler(null);
+        mEnergyStats.flush();
+        /* Leave the sensor disarmed, quitSafely() still runs this before the thread ends */
+        mEventHandler.post(mDisarmRunnable);
+        if (mDispatchThread != null) {
+            mDispatchThread.quitSafely();
+            mDispatchThread = null;
+            mDispatchHandler = null;
+        }
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return mSubscriptions.getBinder();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("HtcGestureService state:");
+        pw.println("  dispatch thread: " + (mDispatchThread != null ? "dedicated" : "main"));
+        pw.println("  config: " + mConfig);
+        pw.println("  startup: ready=+" + (mReadyTimeMs - mCreateTimeMs) + "ms"
+                + " deferred=+" + (mDeferredInitTimeMs != 0
+                        ? (mDeferredInitTimeMs - mCreateTimeMs) + "ms" : "pending")
+                + " firstArmed=" + (mFirstArmedTimeMs != 0
+                        ? mFirstArmedTimeMs + "ms after boot"
+                                + (mFirstArmedLocked ? " (locked)" : "") : "never"));
+        GestureControlNode node = mGestureSensor.getControlNode();
+        pw.println("  control node: mask=" + Integer.toHexString(node.getWrittenMask())
+                + " writes=" + node.getWriteCount() + " skipped=" + node.getSkipCount());
+        final Intent cameraIntent = mCameraIntent;
+        pw.println("  camera prewarm: " + (mCameraPrewarmEnabled ? "on" : "off") + " target="
+                + (cameraIntent != null ? cameraIntent.getComponent() : null));
+        GestureEventCoalescer coalescer = mGestureSensor.getCoalescer();
+        pw.println("  coalesced events: merged=" + coalescer.getMergedCount()
+                + " dropped=" + coalescer.getDroppedCount());
+        pw.println("  batch latency: " + mGestureSensor.getRegisteredLatencyMs() + "ms");
+        mActionRegistry.dump(pw);
+        mArmingController.dump(pw);
+        mTorchController.dump(pw);
+        mDispatcher.dump(pw);
+        mReconciler.dump(pw);
+        mWatchdog.dump(pw);
+        mSubscriptions.dump(pw);
+        mWakeManager.dump(pw);
+        mEnergyStats.dump(pw);
+        mLatencyTracker.dump(pw);
+        if (mRecorder != null) {
+            mRecorder.dump(pw);
+        }
     }
 
     private void onDisplayOn() {
         if (DEBUG) Log.d(TAG, "Display on");
-        if (isDoubleTapEnabled()) {
-            mGestureSensor.disableGesture(GestureMotionSensor.SENSOR_GESTURE_DOUBLE_TAP);
-        }
-        if (mSwipeUpAction != ACTION_NONE) {
-            mGestureSensor.disableGesture(GestureMotionSensor.SENSOR_GESTURE_SWIPE_UP);
-        }
-        if (mSwipeDownAction != ACTION_NONE) {
-            mGestureSensor.disableGesture(GestureMotionSensor.SENSOR_GESTURE_SWIPE_DOWN);
+        mReconciler.reconcile(false, 0);
+        if (mRecorder != null) {
+            mRecorder.record(GestureFlightRecorder.TYPE_SCREEN, 0, 0);
         }
-        if (mSwipeLeftAction != ACTION_NONE) {
-            mGestureSensor.disableGesture(GestureMotionSensor.SENSOR_GESTURE_SWIPE_LEFT);
-        }
-        if (mSwipeRightAction != ACTION_NONE) {
-            mGestureSensor.disableGesture(GestureMotionSensor.SENSOR_GESTURE_SWIPE_RIGHT);
-        }
-        mGestureSensor.stopListening();
     }
 
     private void onDisplayOff() {
         if (DEBUG) Log.d(TAG, "Display off");
-        if (isDoubleTapEnabled()) {
-            mGestureSensor.enableGesture(GestureMotionSensor.SENSOR_GESTURE_DOUBLE_TAP);
-        }
-        if (mSwipeUpAction != ACTION_NONE) {
-            mGestureSensor.enableGesture(GestureMotionSensor.SENSOR_GESTURE_SWIPE_UP);
-        }
-        if (mSwipeDownAction != ACTION_NONE) {
-            mGestureSensor.enableGesture(GestureMotionSensor.SENSOR_GESTURE_SWIPE_DOWN);
+        mWakeManager.onDisplayOff();
+        mEnergyStats.onDisplayOff();
+        final int gestures = mReconciler.reconcile(true, getWantedGestures());
+        if (mRecorder != null) {
+            mRecorder.record(GestureFlightRecorder.TYPE_SCREEN, 1, gestures);
         }
-        if (mSwipeLeftAction != ACTION_NONE) {
-            mGestureSensor.enableGesture(GestureMotionSensor.SENSOR_GESTURE_SWIPE_LEFT);
+        if (mFirstArmedTimeMs == 0 && mGestureSensor.isListening()) {
+            mFirstArmedTimeMs = getElapsedRealtimeMs();
+            mFirstArmedLocked = !mContext.getSystemService(UserManager.class).isUserUnlocked();
+            Log.i(TAG, "Gestures first armed " + mFirstArmedTimeMs + "ms after boot"
+                    + (mFirstArmedLocked ? ", before unlock" : ""));
         }
-        if (mSwipeRightAction != ACTION_NONE) {
-            mGestureSensor.enableGesture(GestureMotionSensor.SENSOR_GESTURE_SWIPE_RIGHT);
-        }
-        mGestureSensor.beginListening();
     }
 
-    private boolean isDoubleTapEnabled() {
-        return (Settings.Secure.getInt(mContext.getContentResolver(),
-                    Settings.Secure.DOUBLE_TAP_TO_WAKE, 0) != 0);
+    private long getElapsedRealtimeMs() {
+        return mClock.elapsedRealtimeNanos() / 1000000;
     }
 
-    private void handleGestureAction(int action) {
-        if (DEBUG) Log.d(TAG, "Performing gesture action: " + action);
-        switch (action) {
-            case ACTION_CAMERA:
-                handleCameraActivation();
-                break;
-            case ACTION_TORCH:
-                handleFlashlightActivation();
-                break;
-            case ACTION_NONE:
-            default:
-                break;
+    private void launchCamera() {
+        final Intent prepared = mCameraIntent;
+        /* The secure camera can only be shown over the keyguard once the device is awake */
+        mDispatcher.wakeUp();
+        if (prepared != null) {
+            if (startCameraActivity(prepared)) {
+                return;
+            }
+            /* The pinned target may have been uninstalled, let the system resolve it again */
+            mCameraIntent = null;
+            refreshCameraIntent();
+        }
+        if (!startCameraActivity(createCameraIntent())) {
+            Log.w(TAG, "No camera to launch");
         }
     }
 
-    private void handleCameraActivation() {
-        doHapticFeedback();
-        launchCamera();
-    }
-
-    private void handleFlashlightActivation() {
-        doHapticFeedback();
-        launchFlashlight();
+    private boolean startCameraActivity(Intent intent) {
+        try {
+            mContext.startActivityAsUser(intent, null, UserHandle.CURRENT);
+        } catch (ActivityNotFoundException e) {
+            return false;
+        }
+        /* Usable over the keyguard, the wake-up served its purpose */
+        mEnergyStats.onInteraction();
+        return true;
     }
 
-    private void launchCamera() {
-        mSensorWakeLock.acquire(SENSOR_WAKELOCK_DURATION);
-        mPowerManager.wakeUp(SystemClock.uptimeMillis());
+    private static Intent createCameraIntent() {
         Intent intent = new Intent(MediaStore.INTENT_ACTION_STILL_IMAGE_CAMERA_SECURE);
         intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
                 Intent.FLAG_ACTIVITY_SINGLE_TOP | Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        try {
-            mContext.startActivityAsUser(intent, null, new UserHandle(UserHandle.USER_CURRENT));
-        } catch (ActivityNotFoundException e) {
-            /* Ignore */
-        }
+        return intent;
     }
 
-    private void launchFlashlight() {
-        mSensorWakeLock.acquire(SENSOR_WAKELOCK_DURATION);
-        mPowerManager.wakeUp(SystemClock.uptimeMillis());
-        try {
-            mCameraManager.setTorchMode(mTorchCameraId, !mTorchEnabled);
-        } catch (CameraAccessException e) {
-            // Ignore
+    /* Resolving is a binder call, so it's never done on the dispatch thread */
+    private void refreshCameraIntent() {
+        if (!mCameraPrewarmEnabled) {
+            return;
         }
+        BackgroundThread.getHandler().removeCallbacks(mCameraIntentRefresh);
+        BackgroundThread.getHandler().post(mCameraIntentRefresh);
     }
 
-    private void doHapticFeedback() {
-        if (mVibrator == null || !mVibrator.hasVibrator()) {
-            return;
+    private final Runnable mCameraIntentRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mCameraIntent = prepareCameraIntent();
         }
+    };
 
-        if (mAudioManager.getRingerMode() != AudioManager.RINGER_MODE_SILENT) {
-            final boolean enabled = LineageSettings.System.getInt(mContext.getContentResolver(),
-                    LineageSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0;
-            if (enabled) {
-                mVibrator.vibrate(100);
-            }
+    /* Pins the launch intent to the camera activity it currently resolves to */
+    private Intent prepareCameraIntent() {
+        Intent intent = createCameraIntent();
+        ResolveInfo info = mContext.getPackageManager().resolveActivityAsUser(intent,
+                PackageManager.MATCH_DEFAULT_ONLY, UserHandle.USER_CURRENT);
+        if (info == null || info.activityInfo == null) {
+            return null;
         }
+        if ("android".equals(info.activityInfo.packageName)) {
+            /* Several candidates, leave the choice to the resolver */
+            return intent;
+        }
+        intent.setClassName(info.activityInfo.packageName, info.activityInfo.name);
+        return intent;
     }
 
-    private String getTorchCameraId() {
-        try {
-            for (final String id : mCameraManager.getCameraIdList()) {
-                CameraCharacteristics cc = mCameraManager.getCameraCharacteristics(id);
-                int direction = cc.get(CameraCharacteristics.LENS_FACING);
-                if (direction == CameraCharacteristics.LENS_FACING_BACK) {
-                    return id;
-                }
+    private void doHapticFeedback(int gestureIndex) {
+        final GestureHaptics haptics = mHaptics;
+        if (haptics != null && mConfig.shouldVibrate()) {
+            haptics.vibrate(gestureIndex);
+        }
+    }
+
+    private GestureActionRegistry.Host mActionHost = new GestureActionRegistry.Host() {
+        @Override
+        public void launchCamera() {
+            HtcGestureService.this.launchCamera();
+        }
+
+        @Override
+        public void toggleTorch(int gestureIndex, long timestamp) {
+            mTorchController.toggle(gestureIndex, timestamp);
+            mEnergyStats.onInteraction();
+        }
+
+        @Override
+        public void wakeUp() {
+            mDispatcher.wakeUp();
+        }
+
+        @Override
+        public void startActivity(Intent intent) {
+            try {
+                mContext.startActivityAsUser(intent, null, UserHandle.CURRENT);
+            } catch (ActivityNotFoundException e) {
+                Log.w(TAG, "Launch target not found: " + intent);
             }
-        } catch (CameraAccessException e) {
-            // Ignore
         }
 
-        return null;
-    }
+        @Override
+        public void dispatchMediaKey(KeyEvent down, KeyEvent up) {
+            mAudioManager.dispatchMediaKeyEvent(down);
+            mAudioManager.dispatchMediaKeyEvent(up);
+        }
 
-    private CameraManager.TorchCallback mTorchCallback = new CameraManager.TorchCallback() {
         @Override
-        public void onTorchModeChanged(String cameraId, boolean enabled) {
-            if (!cameraId.equals(mTorchCameraId))
-                return;
-            mTorchEnabled = enabled;
+        public void doHapticFeedback(int gestureIndex) {
+            HtcGestureService.this.doHapticFeedback(gestureIndex);
         }
+    };
 
+    private GestureArmingController.Callbacks mArmingCallbacks =
+            new GestureArmingController.Callbacks() {
         @Override
-        public void onTorchModeUnavailable(String cameraId) {
-            if (!cameraId.equals(mTorchCameraId))
-                return;
-            mTorchEnabled = false;
+        public void onArm() {
+            onDisplayOff();
+        }
+
+        @Override
+        public void onDisarm() {
+            onDisplayOn();
         }
     };
 
-    private BroadcastReceiver mScreenStateReceiver = new BroadcastReceiver() {
+    private GestureSubscriptionManager.Callbacks mSubscriptionCallbacks =
+            new GestureSubscriptionManager.Callbacks() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent.getAction().equals(Intent.ACTION_SCREEN_OFF)) {
-                onDisplayOff();
-            } else if (intent.getAction().equals(Intent.ACTION_SCREEN_ON)) {
-                onDisplayOn();
+        public void onSubscriptionsChanged(final int gestures) {
+            mGestureSensor.registerListener(mSubscriptions, gestures);
+            scheduleReconcile();
+        }
+    };
+
+    private int getWantedGestures() {
+        return mConfig.getArmableGestures() | mDispatcher.getSequenceGestures()
+                | mSubscriptions.getSubscribedGestures();
+    }
+
+    /* Applies config and subscription changes to an armed sensor right away */
+    private void scheduleReconcile() {
+        mEventHandler.removeCallbacks(mReconcileRunnable);
+        mEventHandler.post(mReconcileRunnable);
+    }
+
+    private final Runnable mReconcileRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mArmingController.isArmed()) {
+                mReconciler.reconcile(true, getWantedGestures());
             }
         }
     };
 
-    private int gestureToAction(int gesture) {
-        switch (gesture) {
-            case GestureMotionSensor.SENSOR_GESTURE_SWIPE_UP:
-                return mSwipeUpAction;
-            case GestureMotionSensor.SENSOR_GESTURE_SWIPE_DOWN:
-                return mSwipeDownAction;
-            case GestureMotionSensor.SENSOR_GESTURE_SWIPE_LEFT:
-                return mSwipeLeftAction;
-            case GestureMotionSensor.SENSOR_GESTURE_SWIPE_RIGHT:
-                return mSwipeRightAction;
-            default:
-                return -1;
+    private final Runnable mDisarmRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mReconciler.reconcile(false, 0);
         }
+    };
+
+    private void setConfig(GestureConfig config) {
+        if (DEBUG) Log.d(TAG, "New config: " + config);
+        mConfig = config;
+        mDispatcher.setConfig(config);
+        mActionRegistry.update(config);
+        mGestureSensor.setLowLatencyGestures(
+                config.getGesturesForAction(GestureConfig.ACTION_CAMERA)
+                | config.getGesturesForAction(GestureConfig.ACTION_TORCH));
+        scheduleReconcile();
+    }
+
+    private boolean readDoubleTapEnabled() {
+        return (Settings.Secure.getInt(mContext.getContentResolver(),
+                    Settings.Secure.DOUBLE_TAP_TO_WAKE, 0) != 0);
+    }
+
+    private boolean readHapticFeedbackEnabled() {
+        return LineageSettings.System.getInt(mContext.getContentResolver(),
+                LineageSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0;
     }
 
-    private void loadPreferences(SharedPreferences sharedPreferences) {
+    private static int getAction(SharedPreferences sharedPreferences, String key) {
+        return Integer.parseInt(sharedPreferences.getString(key,
+                    Integer.toString(GestureConfig.ACTION_NONE)));
+    }
+
+    static int[] loadActions(SharedPreferences sharedPreferences) {
+        final int[] actions = new int[GestureMotionSensor.GESTURE_COUNT];
+        actions[GestureMotionSensor.GESTURE_INDEX_DOUBLE_TAP] = GestureConfig.ACTION_WAKE;
+        /* The dedicated camera gesture has no setting, it's always armed */
+        actions[GestureMotionSensor.GESTURE_INDEX_CAMERA] = GestureConfig.ACTION_CAMERA;
         try {
-            mSwipeUpAction = Integer.parseInt(sharedPreferences.getString(KEY_SWIPE_UP,
-                        Integer.toString(ACTION_NONE)));
-            mSwipeDownAction = Integer.parseInt(sharedPreferences.getString(KEY_SWIPE_DOWN,
-                        Integer.toString(ACTION_NONE)));
-            mSwipeLeftAction = Integer.parseInt(sharedPreferences.getString(KEY_SWIPE_LEFT,
-                    Integer.toString(ACTION_NONE)));
-            mSwipeRightAction = Integer.parseInt(sharedPreferences.getString(KEY_SWIPE_RIGHT,
-                        Integer.toString(ACTION_NONE)));
+            actions[GestureMotionSensor.GESTURE_INDEX_SWIPE_UP] =
+                    getAction(sharedPreferences, KEY_SWIPE_UP);
+            actions[GestureMotionSensor.GESTURE_INDEX_SWIPE_DOWN] =
+                    getAction(sharedPreferences, KEY_SWIPE_DOWN);
+            actions[GestureMotionSensor.GESTURE_INDEX_SWIPE_LEFT] =
+                    getAction(sharedPreferences, KEY_SWIPE_LEFT);
+            actions[GestureMotionSensor.GESTURE_INDEX_SWIPE_RIGHT] =
+                    getAction(sharedPreferences, KEY_SWIPE_RIGHT);
         } catch (NumberFormatException e) {
             Log.e(TAG, "Error loading preferences");
         }
+        return actions;
+    }
+
+    static String[] loadTargets(SharedPreferences sharedPreferences) {
+        final String[] targets = new String[GestureMotionSensor.GESTURE_COUNT];
+        targets[GestureMotionSensor.GESTURE_INDEX_SWIPE_UP] =
+                sharedPreferences.getString(KEY_SWIPE_UP_TARGET, null);
+        targets[GestureMotionSensor.GESTURE_INDEX_SWIPE_DOWN] =
+                sharedPreferences.getString(KEY_SWIPE_DOWN_TARGET, null);
+        targets[GestureMotionSensor.GESTURE_INDEX_SWIPE_LEFT] =
+                sharedPreferences.getString(KEY_SWIPE_LEFT_TARGET, null);
+        targets[GestureMotionSensor.GESTURE_INDEX_SWIPE_RIGHT] =
+                sharedPreferences.getString(KEY_SWIPE_RIGHT_TARGET, null);
+        return targets;
     }
 
     private SharedPreferences.OnSharedPreferenceChangeListener mPrefListener =
             new SharedPreferences.OnSharedPreferenceChangeListener() {
         @Override
         public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-            try {
-                if (KEY_SWIPE_UP.equals(key)) {
-                    mSwipeUpAction = Integer.parseInt(sharedPreferences.getString(KEY_SWIPE_UP,
-                                Integer.toString(ACTION_NONE)));
-                } else if (KEY_SWIPE_DOWN.equals(key)) {
-                    mSwipeDownAction = Integer.parseInt(sharedPreferences.getString(KEY_SWIPE_DOWN,
-                                Integer.toString(ACTION_NONE)));
-                } else if (KEY_SWIPE_LEFT.equals(key)) {
-                    mSwipeLeftAction = Integer.parseInt(sharedPreferences.getString(KEY_SWIPE_LEFT,
-                                Integer.toString(ACTION_NONE)));
-                } else if (KEY_SWIPE_RIGHT.equals(key)) {
-                    mSwipeRightAction = Integer.parseInt(sharedPreferences.getString(KEY_SWIPE_RIGHT,
-                                Integer.toString(ACTION_NONE)));
-                }
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Error loading preferences");
+            if (KEY_SWIPE_UP.equals(key) || KEY_SWIPE_DOWN.equals(key)
+                    || KEY_SWIPE_LEFT.equals(key) || KEY_SWIPE_RIGHT.equals(key)
+                    || KEY_SWIPE_UP_TARGET.equals(key) || KEY_SWIPE_DOWN_TARGET.equals(key)
+                    || KEY_SWIPE_LEFT_TARGET.equals(key) || KEY_SWIPE_RIGHT_TARGET.equals(key)) {
+                setConfig(mConfig.withActions(loadActions(sharedPreferences),
+                        loadTargets(sharedPreferences)));
+            } else if (KEY_SEQUENCES.equals(key)) {
+                mDispatcher.setSequencePatterns(sharedPreferences.getString(KEY_SEQUENCES, null));
+                scheduleReconcile();
+            } else if (KEY_POCKET_GATE.equals(key)) {
+                setConfig(mConfig.withPocketGateEnabled(
+                        sharedPreferences.getBoolean(KEY_POCKET_GATE, false)));
             }
         }
     };
+
+    private ContentObserver mSettingsObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            setConfig(mConfig.withDoubleTapEnabled(readDoubleTapEnabled())
+                    .withHapticFeedbackEnabled(readHapticFeedbackEnabled()));
+        }
+    };
+
+    private BroadcastReceiver mUserPresentReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mEnergyStats.onUserPresent();
+        }
+    };
+
+    /* The camera activity, or the user picking it, may have changed */
+    private BroadcastReceiver mCameraTargetReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            refreshCameraIntent();
+        }
+    };
+
+    private BroadcastReceiver mRingerModeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            setConfig(mConfig.withRingerMode(intent.getIntExtra(AudioManager.EXTRA_RINGER_MODE,
+                    AudioManager.RINGER_MODE_NORMAL)));
+        }
+    };
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/*
+ * Samples the proximity sensor once per gesture to tell whether the device is
+ * in a pocket or bag. The sensor is only powered while a check is pending.
+ * All methods and callbacks run on the handler's thread.
+ */
+public class PocketDetector {
+
+    private static final boolean DEBUG = false;
+    private static final String TAG = "PocketDetector";
+
+    /* Report the gesture as uncovered if the sensor doesn't answer in time */
+    private static final long CHECK_TIMEOUT_MS = 150;
+
+    /* Anything closer than this counts as covered, if the sensor range is larger */
+    private static final float COVERED_DISTANCE_CM = 5.0f;
+
+    public interface Callback {
+        /* action is what was passed to check() */
+        public void onPocketCheckResult(int gestureIndex, long timestamp, int action,
+                boolean covered);
+    }
+
+    /* Powers the proximity sensor while a check runs, replaced by a fake in tests */
+    interface ProximitySource {
+        public boolean isAvailable();
+
+        /* Samples are reported on the handler's thread until stop() */
+        public void start(ProximityListener listener, Handler handler);
+
+        public void stop();
+    }
+
+    interface ProximityListener {
+        public void onProximity(boolean covered);
+    }
+
+    static final class SensorProximitySource implements ProximitySource {
+        private final SensorManager mSensorManager;
+        private final Sensor mSensor;
+        private final float mThreshold;
+        private ProximityListener mListener;
+
+        SensorProximitySource(SensorManager sensorManager) {
+            mSensorManager = sensorManager;
+            mSensor = sensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
+            mThreshold = mSensor != null
+                    ? Math.min(mSensor.getMaximumRange(), COVERED_DISTANCE_CM) : 0;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return mSensor != null;
+        }
+
+        @Override
+        public void start(ProximityListener listener, Handler handler) {
+            mListener = listener;
+            mSensorManager.registerListener(mSensorEventListener, mSensor,
+                    SensorManager.SENSOR_DELAY_FASTEST, handler);
+        }
+
+        @Override
+        public void stop() {
+            mSensorManager.unregisterListener(mSensorEventListener);
+            mListener = null;
+        }
+
+        private final SensorEventListener mSensorEventListener = new SensorEventListener() {
+            @Override
+            public void onSensorChanged(SensorEvent event) {
+                final ProximityListener listener = mListener;
+                if (listener != null) {
+                    listener.onProximity(event.values[0] < mThreshold);
+                }
+            }
+
+            @Override
+            public void onAccuracyChanged(Sensor sensor, int accuracy) {
+                /* Empty */
+            }
+        };
+    }
+
+    private final ProximitySource mSource;
+    private final Handler mHandler;
+    private final Callback mCallback;
+
+    private boolean mPending;
+    private int mPendingGesture;
+    private long mPendingTimestamp;
+    private int mPendingAction;
+
+    private final int[] mSuppressedCounts = new int[GestureMotionSensor.GESTURE_COUNT];
+    private int mCheckCount;
+    private int mTimeoutCount;
+    private int mReplacedCount;
+
+    public PocketDetector(SensorManager sensorManager, Handler handler, Callback callback) {
+        this(new SensorProximitySource(sensorManager), handler, callback);
+    }
+
+    /* Also used to check against a fake proximity sensor */
+    PocketDetector(ProximitySource source, Handler handler, Callback callback) {
+        mSource = source;
+        mHandler = handler;
+        mCallback = callback;
+        if (!mSource.isAvailable()) {
+            Log.w(TAG, "No proximity sensor, pocket detection disabled");
+        }
+    }
+
+    public long getCheckTimeoutMs() {
+        return CHECK_TIMEOUT_MS;
+    }
+
+    public boolean isAvailable() {
+        return mSource.isAvailable();
+    }
+
+    /*
+     * Only the most recent gesture is kept while a check is running. The action
+     * is handed back with the result, e.g. the action of a matched sequence.
+     */
+    public void check(int gestureIndex, long timestamp, int action) {
+        if (mPending) {
+            mReplacedCount++;
+        } else {
+            mPending = true;
+            mCheckCount++;
+            mSource.start(mProximityListener, mHandler);
+            mHandler.postDelayed(mTimeoutRunnable, CHECK_TIMEOUT_MS);
+        }
+        mPendingGesture = gestureIndex;
+        mPendingTimestamp = timestamp;
+        mPendingAction = action;
+    }
+
+    private void finish(boolean covered) {
+        if (!mPending) {
+            return;
+        }
+        mPending = false;
+        mSource.stop();
+        mHandler.removeCallbacks(mTimeoutRunnable);
+
+        if (DEBUG) Log.d(TAG, "Gesture " + mPendingGesture + " covered=" + covered);
+        if (covered && mPendingGesture >= 0) {
+            mSuppressedCounts[mPendingGesture]++;
+        }
+        mCallback.onPocketCheckResult(mPendingGesture, mPendingTimestamp, mPendingAction,
+                covered);
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.print("  pocket: available=" + isAvailable() + " checks=" + mCheckCount
+                + " timeouts=" + mTimeoutCount + " replaced=" + mReplacedCount
+                + " suppressed=[");
+        for (int index = 0; index < GestureMotionSensor.GESTURE_COUNT; index++) {
+            if (index > 0) {
+                pw.print(" ");
+            }
+            pw.print(GestureMotionSensor.gestureIndexToString(index));
+            pw.print("=");
+            pw.print(mSuppressedCounts[index]);
+        }
+        pw.println("]");
+    }
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mTimeoutCount++;
+            finish(false);
+        }
+    };
+
+    private final ProximityListener mProximityListener = new ProximityListener() {
+        @Override
+        public void onProximity(boolean covered) {
+            finish(covered);
+        }
+    };
+}
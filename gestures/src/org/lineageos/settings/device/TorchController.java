@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/*
+ * Owns the torch of the back camera. The state reported by the camera service
+ * is authoritative; toggles issued while a previous request is still in flight
+ * are merged into a single target, which is applied once the service confirms.
+ */
+public class TorchController {
+
+    private static final boolean DEBUG = false;
+    private static final String TAG = "TorchController";
+
+    /* An unconfirmed request is considered lost after this long */
+    private static final long REQUEST_TIMEOUT_MS = 500;
+
+    private static final long RESOLVE_RETRY_INITIAL_MS = 1000;
+    private static final int RESOLVE_RETRY_MAX_ATTEMPTS = 6;
+
+    private final CameraManager mCameraManager;
+    private final Handler mHandler;
+    /* Runs the camera lookup and the torch callback (un)registration, set by start() */
+    private Handler mResolveHandler;
+    private final GestureClock mClock;
+    private GestureLatencyTracker mLatencyTracker;
+    private GestureEnergyStats mEnergyStats;
+
+    /* Published by the lookup once the torch callback is about to be registered */
+    private volatile String mCameraId;
+    private boolean mAvailable;
+    private boolean mEnabled;
+    /* Target of the request in flight, valid while mRequestTimeMs >= 0 */
+    private boolean mRequestedState;
+    private long mRequestTimeMs = -1;
+    /* Sensor hub timestamp of the gesture that asked for the light, -1 if none */
+    private int mPendingGestureIndex = -1;
+    private long mPendingTimestamp;
+    /* Gesture that turned the torch on and since when, -1 if none */
+    private int mOnGestureIndex = -1;
+    private long mOnSinceMs;
+
+    /* Only changed on the resolve handler */
+    private int mResolveAttempts;
+    private int mToggleCount;
+    private int mMergedCount;
+    private int mFailedCount;
+
+    public TorchController(CameraManager cameraManager, Handler handler, GestureClock clock) {
+        mCameraManager = cameraManager;
+        mHandler = handler;
+        mClock = clock;
+    }
+
+    public synchronized void setLatencyTracker(GestureLatencyTracker tracker) {
+        mLatencyTracker = tracker;
+    }
+
+    public synchronized void setEnergyStats(GestureEnergyStats stats) {
+        mEnergyStats = stats;
+    }
+
+    /* Looks up the torch camera on the given handler, it enumerates all cameras */
+    public synchronized void start(Handler resolveHandler) {
+        mResolveHandler = resolveHandler;
+        mResolveHandler.post(mResolveRunnable);
+    }
+
+    public synchronized void stop() {
+        if (mResolveHandler != null) {
+            mResolveHandler.removeCallbacks(mResolveRunnable);
+            /* Queued behind a lookup that's already running, so it can't register afterwards */
+            mResolveHandler.post(mUnregisterRunnable);
+        }
+    }
+
+    /* Flips the torch relative to the state the last toggle asked for */
+    public synchronized void toggle(int gestureIndex, long timestamp) {
+        if (mCameraId == null) {
+            /* The lookup is binder heavy, so it's never done on the caller's thread */
+            Log.w(TAG, "No torch camera available");
+            mFailedCount++;
+            if (mResolveHandler != null) {
+                mResolveHandler.removeCallbacks(mResolveRunnable);
+                mResolveHandler.post(mResolveRunnable);
+            }
+            return;
+        }
+
+        mToggleCount++;
+        final boolean inFlight = isRequestInFlight();
+        final boolean target = !(inFlight ? mRequestedState : mEnabled);
+        mRequestedState = target;
+        mPendingGestureIndex = target ? gestureIndex : -1;
+        mPendingTimestamp = timestamp;
+        if (inFlight) {
+            /* Applied once the service reports the outcome of the current request */
+            if (DEBUG) Log.d(TAG, "Merging toggle, target " + target);
+            mMergedCount++;
+            return;
+        }
+        setTorchMode(target);
+    }
+
+    private boolean isRequestInFlight() {
+        return mRequestTimeMs >= 0 && mClock.uptimeMillis() - mRequestTimeMs < REQUEST_TIMEOUT_MS;
+    }
+
+    private void setTorchMode(boolean enabled) {
+        if (DEBUG) Log.d(TAG, "Setting torch " + enabled);
+        mRequestTimeMs = mClock.uptimeMillis();
+        try {
+            mCameraManager.setTorchMode(mCameraId, enabled);
+        } catch (CameraAccessException | IllegalArgumentException e) {
+            Log.w(TAG, "Failed to set torch mode", e);
+            mFailedCount++;
+            mRequestTimeMs = -1;
+            mPendingGestureIndex = -1;
+        }
+    }
+
+    private synchronized void onTorchState(String cameraId, boolean available, boolean enabled) {
+        if (!cameraId.equals(mCameraId)) {
+            return;
+        }
+        mAvailable = available;
+        final boolean wasEnabled = mEnabled;
+        mEnabled = enabled;
+
+        if (enabled && !wasEnabled) {
+            mOnGestureIndex = mPendingGestureIndex;
+            /* Elapsed time, the device may suspend while the torch is on */
+            mOnSinceMs = mClock.elapsedRealtimeNanos() / 1000000;
+        } else if (!enabled && wasEnabled) {
+            if (mOnGestureIndex >= 0 && mEnergyStats != null) {
+                mEnergyStats.onTorchOff(mOnGestureIndex,
+                        mClock.elapsedRealtimeNanos() / 1000000 - mOnSinceMs);
+            }
+            mOnGestureIndex = -1;
+        }
+
+        if (enabled && mPendingGestureIndex >= 0 && mLatencyTracker != null) {
+            mLatencyTracker.record(mPendingGestureIndex, GestureLatencyTracker.STAGE_TORCH,
+                    mClock.elapsedRealtimeNanos() - mPendingTimestamp);
+        }
+        if (enabled) {
+            mPendingGestureIndex = -1;
+        }
+
+        if (mRequestTimeMs < 0) {
+            /* Changed by someone else */
+            return;
+        }
+        mRequestTimeMs = -1;
+        if (available && enabled != mRequestedState) {
+            /* More toggles came in while the last request was in flight */
+            setTorchMode(mRequestedState);
+        }
+    }
+
+    /* Returns the back camera with a flash, or null. Called without the lock held */
+    private String findTorchCameraId() {
+        mResolveAttempts++;
+        try {
+            for (final String id : mCameraManager.getCameraIdList()) {
+                CameraCharacteristics cc = mCameraManager.getCameraCharacteristics(id);
+                Integer direction = cc.get(CameraCharacteristics.LENS_FACING);
+                Boolean flash = cc.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+                if (direction != null && direction == CameraCharacteristics.LENS_FACING_BACK
+                        && Boolean.TRUE.equals(flash)) {
+                    return id;
+                }
+            }
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Failed to query cameras", e);
+        }
+        return null;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("  torch: camera=" + mCameraId + " available=" + mAvailable
+                + " enabled=" + mEnabled + " inFlight=" + (mRequestTimeMs >= 0)
+                + " toggles=" + mToggleCount + " merged=" + mMergedCount
+                + " failed=" + mFailedCount + " resolveAttempts=" + mResolveAttempts);
+    }
+
+    private final Runnable mResolveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mCameraId != null) {
+                return;
+            }
+            final String cameraId = findTorchCameraId();
+            if (cameraId != null) {
+                /* Set first, the callback reports the current state right away */
+                mCameraId = cameraId;
+                mCameraManager.registerTorchCallback(mTorchCallback, mHandler);
+            } else if (mResolveAttempts < RESOLVE_RETRY_MAX_ATTEMPTS) {
+                /* The camera provider may not be up yet this early in boot */
+                mResolveHandler.postDelayed(this,
+                        RESOLVE_RETRY_INITIAL_MS << (mResolveAttempts - 1));
+            }
+        }
+    };
+
+    private final Runnable mUnregisterRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mCameraId != null) {
+                mCameraManager.unregisterTorchCallback(mTorchCallback);
+            }
+        }
+    };
+
+    private final CameraManager.TorchCallback mTorchCallback = new CameraManager.TorchCallback() {
+        @Override
+        public void onTorchModeChanged(String cameraId, boolean enabled) {
+            onTorchState(cameraId, true, enabled);
+        }
+
+        @Override
+        public void onTorchModeUnavailable(String cameraId) {
+            onTorchState(cameraId, false, false);
+        }
+    };
+}
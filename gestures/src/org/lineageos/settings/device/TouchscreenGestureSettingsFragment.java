@@ -18,19 +18,135 @@
 package org.lineageos.settings.device;
 
 import android.app.ActionBar;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
 import android.os.Bundle;
 import android.support.v14.preference.PreferenceFragment;
+import android.support.v7.preference.ListPreference;
+import android.support.v7.preference.Preference;
+import android.support.v7.preference.PreferenceCategory;
 import android.view.MenuItem;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
 public class TouchscreenGestureSettingsFragment extends PreferenceFragment {
 
+    private static final String KEY_STATS = "gesture_stats_key";
+
+    private static final String[] ACTION_KEYS = {
+        HtcGestureService.KEY_SWIPE_UP,
+        HtcGestureService.KEY_SWIPE_DOWN,
+        HtcGestureService.KEY_SWIPE_LEFT,
+        HtcGestureService.KEY_SWIPE_RIGHT
+    };
+
+    private static final String[] TARGET_KEYS = {
+        HtcGestureService.KEY_SWIPE_UP_TARGET,
+        HtcGestureService.KEY_SWIPE_DOWN_TARGET,
+        HtcGestureService.KEY_SWIPE_LEFT_TARGET,
+        HtcGestureService.KEY_SWIPE_RIGHT_TARGET
+    };
+
+    /* Indexed by gesture index */
+    private static final int[] GESTURE_TITLES = {
+        R.string.gesture_double_tap_title,
+        R.string.touchscreen_swipe_up_title,
+        R.string.touchscreen_swipe_down_title,
+        R.string.touchscreen_swipe_left_title,
+        R.string.touchscreen_swipe_right_title,
+        R.string.gesture_camera_title
+    };
+
     @Override
     public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
+        /* Read by HtcGestureService before the user unlocks the device */
+        getPreferenceManager().setStorageDeviceProtected();
         addPreferencesFromResource(R.xml.gesture_panel);
+        setupTargetPreferences();
+        setupStatsPreferences();
         final ActionBar actionBar = getActivity().getActionBar();
         actionBar.setDisplayHomeAsUpEnabled(true);
     }
 
+    private void setupTargetPreferences() {
+        final PackageManager pm = getContext().getPackageManager();
+        final Intent launcherIntent = new Intent(Intent.ACTION_MAIN)
+                .addCategory(Intent.CATEGORY_LAUNCHER);
+        final List<ResolveInfo> apps = pm.queryIntentActivities(launcherIntent, 0);
+        Collections.sort(apps, new ResolveInfo.DisplayNameComparator(pm));
+
+        final CharSequence[] entries = new CharSequence[apps.size()];
+        final CharSequence[] values = new CharSequence[apps.size()];
+        for (int i = 0; i < apps.size(); i++) {
+            final ActivityInfo info = apps.get(i).activityInfo;
+            entries[i] = apps.get(i).loadLabel(pm);
+            /* Stored as intent URI, so the service can launch it without looking anything up */
+            values[i] = Intent.makeMainActivity(new ComponentName(info.packageName, info.name))
+                    .addFlags(Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED)
+                    .toUri(Intent.URI_INTENT_SCHEME);
+        }
+
+        for (int i = 0; i < ACTION_KEYS.length; i++) {
+            final ListPreference action = (ListPreference) findPreference(ACTION_KEYS[i]);
+            final ListPreference target = (ListPreference) findPreference(TARGET_KEYS[i]);
+            target.setEntries(entries);
+            target.setEntryValues(values);
+            updateTarget(target, action.getValue());
+            action.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                @Override
+                public boolean onPreferenceChange(Preference preference, Object newValue) {
+                    updateTarget(target, (String) newValue);
+                    return true;
+                }
+            });
+        }
+    }
+
+    /* Shows the counters as of the service's last periodic save */
+    private void setupStatsPreferences() {
+        final PreferenceCategory category = (PreferenceCategory) findPreference(KEY_STATS);
+        final long[] stats = GestureEnergyStats.readSaved(new File(
+                getContext().createDeviceProtectedStorageContext().getFilesDir(),
+                HtcGestureService.ENERGY_STATS_FILE));
+
+        for (int index = 0; index < GestureMotionSensor.GESTURE_COUNT; index++) {
+            final long events = GestureEnergyStats.getSaved(stats, index,
+                    GestureEnergyStats.STAT_EVENTS);
+            if (events == 0) {
+                continue;
+            }
+            final Preference preference = new Preference(getPreferenceManager().getContext());
+            preference.setTitle(GESTURE_TITLES[index]);
+            preference.setSummary(getString(R.string.gesture_stats_summary, events,
+                    GestureEnergyStats.getSaved(stats, index, GestureEnergyStats.STAT_ACTIONS),
+                    GestureEnergyStats.getSaved(stats, index, GestureEnergyStats.STAT_WAKE_UPS),
+                    GestureEnergyStats.getSaved(stats, index,
+                            GestureEnergyStats.STAT_FALSE_POSITIVES),
+                    GestureEnergyStats.getSaved(stats, index,
+                            GestureEnergyStats.STAT_WAKELOCK_MS) / 1000,
+                    GestureEnergyStats.getSaved(stats, index,
+                            GestureEnergyStats.STAT_TORCH_MS) / 1000));
+            preference.setSelectable(false);
+            category.addPreference(preference);
+        }
+
+        if (category.getPreferenceCount() == 0) {
+            final Preference preference = new Preference(getPreferenceManager().getContext());
+            preference.setSummary(R.string.gesture_stats_empty);
+            preference.setSelectable(false);
+            category.addPreference(preference);
+        }
+    }
+
+    private static void updateTarget(ListPreference target, String action) {
+        target.setEnabled(Integer.toString(GestureConfig.ACTION_LAUNCH_APP).equals(action));
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == android.R.id.home) {
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.hardware.SensorEventListener;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures how long gesture events wait from their delivery to the listener,
+ * once on the main looper and once on the running service's dispatch thread,
+ * while the main looper is kept busy with work slices standing in for
+ * broadcasts, preference and torch callbacks. Latency on the dispatch thread
+ * must not depend on that load. The events go to a sensor of the benchmark's
+ * own, so none of the service's gesture actions run.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GestureDispatchThreadBenchmark {
+
+    private static final String TAG = "GestureDispatchThreadBenchmark";
+
+    private static final int EVENT_COUNT = 500;
+    private static final long EVENT_INTERVAL_MS = 20;
+    /* Length of each piece of main looper work */
+    private static final long BUSY_SLICE_MS = 16;
+
+    /* Raw sensor event IDs, see GestureMotionSensor */
+    private static final int[] EVENT_IDS = { 15, 2, 3, 4, 5, 6 };
+
+    private File mControlFile;
+    private GestureMotionSensor mSensor;
+    private Handler mMainHandler;
+    private Handler mDispatchHandler;
+    private Context mContext;
+    private volatile boolean mBusy;
+
+    /* Filled in on the delivering thread, read once mDone has counted down */
+    private long[] mLatencies;
+    private int mReceived;
+    private CountDownLatch mDone;
+
+    /* Events are handed to dispatchSensorEvent() instead of coming from the hub */
+    private final GestureMotionSensor.SensorSource mSensorSource =
+            new GestureMotionSensor.SensorSource() {
+        @Override
+        public boolean findSensor() {
+            return true;
+        }
+
+        @Override
+        public boolean hasSensor() {
+            return true;
+        }
+
+        @Override
+        public boolean registerListener(SensorEventListener listener, int maxReportLatencyUs,
+                Handler handler) {
+            return true;
+        }
+
+        @Override
+        public void unregisterListener(SensorEventListener listener) {
+        }
+    };
+
+    private final GestureMotionSensor.GestureMotionSensorListener mListener =
+            new GestureMotionSensor.GestureMotionSensorListener() {
+        @Override
+        public void onEvent(int gesture, long timestamp) {
+            mLatencies[mReceived++] = SystemClock.elapsedRealtimeNanos() - timestamp;
+            mDone.countDown();
+        }
+    };
+
+    /* Binding creates the service, and with it the dispatch thread, without arming it */
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+        }
+    };
+
+    private final Runnable mBusySlice = new Runnable() {
+        @Override
+        public void run() {
+            final long end = SystemClock.uptimeMillis() + BUSY_SLICE_MS;
+            while (SystemClock.uptimeMillis() < end) {
+                /* Spin like a slow callback */
+            }
+            if (mBusy) {
+                mMainHandler.post(this);
+            }
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        assertTrue("Unable to bind the gesture service", mContext.bindService(
+                new Intent(mContext, HtcGestureService.class), mConnection,
+                Context.BIND_AUTO_CREATE));
+        /* The service is created on the main looper, it's up once that's idle */
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        mDispatchHandler = GestureMotionSensor.getInstance(mContext).getHandler();
+
+        mControlFile = new File(mContext.getCacheDir(), "gesture_motion_benchmark");
+        mControlFile.createNewFile();
+        mSensor = new GestureMotionSensor(mContext, mSensorSource,
+                new GestureControlNode(mControlFile.getPath()));
+        /* Every event has to reach the listener */
+        mSensor.setCoalescingWindows(0, 0);
+        mSensor.registerListener(mListener);
+        mSensor.setEnabledGestures(~0);
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mBusy = false;
+        mSensor.unregisterListener(mListener);
+        mControlFile.delete();
+        mContext.unbindService(mConnection);
+    }
+
+    /* Returns the sorted delivery-to-listener latencies in nanoseconds */
+    private long[] measure(Handler handler) throws InterruptedException {
+        mLatencies = new long[EVENT_COUNT];
+        mReceived = 0;
+        mDone = new CountDownLatch(EVENT_COUNT);
+        mBusy = true;
+        mMainHandler.post(mBusySlice);
+        try {
+            for (int i = 0; i < EVENT_COUNT; i++) {
+                final int eventId = EVENT_IDS[i % EVENT_IDS.length];
+                final long timestamp = SystemClock.elapsedRealtimeNanos();
+                /* What SensorManager does with the handler passed on registration */
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mSensor.dispatchSensorEvent(eventId, timestamp,
+                                SystemClock.elapsedRealtimeNanos());
+                    }
+                });
+                SystemClock.sleep(EVENT_INTERVAL_MS);
+            }
+            assertTrue("Events went missing", mDone.await(10, TimeUnit.SECONDS));
+        } finally {
+            mBusy = false;
+        }
+        final long[] latencies = mLatencies;
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static long percentileUs(long[] sorted, int percentile) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)] / 1000;
+    }
+
+    private static void report(Bundle results, String mode, long[] sorted) {
+        results.putLong(mode + "_p50_us", percentileUs(sorted, 50));
+        results.putLong(mode + "_p99_us", percentileUs(sorted, 99));
+        results.putLong(mode + "_max_us", sorted[sorted.length - 1] / 1000);
+        Log.i(TAG, mode + ": p50=" + percentileUs(sorted, 50) + "us p99="
+                + percentileUs(sorted, 99) + "us max=" + sorted[sorted.length - 1] / 1000
+                + "us");
+    }
+
+    @Test
+    public void dispatchLatency_busyMainLooper() throws Exception {
+        assumeTrue("The service runs without a dispatch thread", mDispatchHandler != null);
+        final long[] main = measure(mMainHandler);
+        final long[] dispatch = measure(mDispatchHandler);
+
+        final Bundle results = new Bundle();
+        report(results, "main_looper", main);
+        report(results, "dispatch_thread", dispatch);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+
+        assertTrue("Dispatch thread p99 of " + percentileUs(dispatch, 99)
+                + "us follows the main looper's load",
+                percentileUs(dispatch, 99) < BUSY_SLICE_MS * 1000);
+    }
+}
@@ -0,0 +1,53 @@
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+# Host side tests, run with: make RunGestureHandlerRoboTests
+LOCAL_MODULE := GestureHandlerRoboTests
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_JAVA_LIBRARIES := \
+    junit \
+    platform-robolectric-3.4.2-prebuilt
+
+LOCAL_INSTRUMENTATION_FOR := GestureHandler
+
+include $(BUILD_STATIC_JAVA_LIBRARY)
+
+#############################################################
+# Runner target for the tests above                         #
+#############################################################
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := RunGestureHandlerRoboTests
+
+LOCAL_SDK_VERSION := current
+
+LOCAL_STATIC_JAVA_LIBRARIES := \
+    GestureHandlerRoboTests
+
+LOCAL_TEST_PACKAGE := GestureHandler
+
+LOCAL_ROBOTEST_FILES := $(call find-files-in-subdirs,$(LOCAL_PATH)/src,*Test.java,.)
+
+include prebuilts/misc/common/robolectric/3.4.2/run_robotests.mk
+
+#############################################################
+# Runner target for the benchmarks, not part of the tests   #
+# above: make RunGestureHandlerRoboBenchmarks               #
+#############################################################
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := RunGestureHandlerRoboBenchmarks
+
+LOCAL_SDK_VERSION := current
+
+LOCAL_STATIC_JAVA_LIBRARIES := \
+    GestureHandlerRoboTests
+
+LOCAL_TEST_PACKAGE := GestureHandler
+
+LOCAL_ROBOTEST_FILES := $(call find-files-in-subdirs,$(LOCAL_PATH)/src,*Benchmark.java,.)
+
+include prebuilts/misc/common/robolectric/3.4.2/run_robotests.mk
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/*
+ * Stand-in for JMH, which the platform build doesn't ship. Runs an operation
+ * on the calling thread for a warm-up phase, then times every operation of
+ * the measured phase and counts the bytes the thread allocated meanwhile.
+ */
+final class BenchmarkHarness {
+
+    interface Operation {
+        void run(int iteration);
+    }
+
+    static final class Result {
+        private final String mName;
+        private final long mTotalNanos;
+        /* Per operation, sorted */
+        private final long[] mNanos;
+        /* -1 if the VM can't count allocations */
+        private final long mAllocatedBytes;
+
+        Result(String name, long totalNanos, long[] nanos, long allocatedBytes) {
+            mName = name;
+            mTotalNanos = totalNanos;
+            mNanos = nanos;
+            mAllocatedBytes = allocatedBytes;
+        }
+
+        double getOpsPerSecond() {
+            return mNanos.length * 1e9 / mTotalNanos;
+        }
+
+        long getPercentileNanos(int percentile) {
+            return mNanos[Math.min(mNanos.length - 1, mNanos.length * percentile / 100)];
+        }
+
+        double getBytesPerOp() {
+            return mAllocatedBytes < 0 ? -1 : (double) mAllocatedBytes / mNanos.length;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d ops, %.0f ops/s, p50=%dns p99=%dns max=%dns, %s",
+                    mName, mNanos.length, getOpsPerSecond(), getPercentileNanos(50),
+                    getPercentileNanos(99), mNanos[mNanos.length - 1],
+                    mAllocatedBytes < 0 ? "allocation n/a"
+                            : String.format("%.1f B/op", getBytesPerOp()));
+        }
+    }
+
+    static final int WARMUP_OPS = 20000;
+    static final int MEASURED_OPS = 100000;
+
+    private BenchmarkHarness() {
+    }
+
+    static Result run(String name, Operation operation) {
+        return run(name, WARMUP_OPS, MEASURED_OPS, operation);
+    }
+
+    static Result run(String name, int warmupOps, int measuredOps, Operation operation) {
+        for (int i = 0; i < warmupOps; i++) {
+            operation.run(i);
+        }
+
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final boolean countAllocations = threads.isThreadAllocatedMemorySupported();
+        if (countAllocations) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+        final long thread = Thread.currentThread().getId();
+        final long[] nanos = new long[measuredOps];
+
+        /* Reading the counter allocates by itself, measure that first */
+        long before = countAllocations ? threads.getThreadAllocatedBytes(thread) : 0;
+        final long overhead = countAllocations
+                ? threads.getThreadAllocatedBytes(thread) - before : 0;
+
+        before = countAllocations ? threads.getThreadAllocatedBytes(thread) : 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < measuredOps; i++) {
+            final long opStart = System.nanoTime();
+            operation.run(warmupOps + i);
+            nanos[i] = System.nanoTime() - opStart;
+        }
+        final long total = System.nanoTime() - start;
+        final long allocated = countAllocations
+                ? threads.getThreadAllocatedBytes(thread) - before - overhead : -1;
+
+        Arrays.sort(nanos);
+        final Result result = new Result(name, total, nanos, allocated);
+        System.out.println(result);
+        return result;
+    }
+}
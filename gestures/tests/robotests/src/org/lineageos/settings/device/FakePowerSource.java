@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+/* Stands in for the power manager, counts wakelock and wake-up calls */
+class FakePowerSource implements GestureWakeManager.PowerSource {
+
+    int wakeLockCount;
+    long lastWakeLockTimeoutMs;
+    int wakeUpCount;
+
+    @Override
+    public void acquireWakeLock(long timeoutMs) {
+        wakeLockCount++;
+        lastWakeLockTimeoutMs = timeoutMs;
+    }
+
+    @Override
+    public void wakeUp(long time) {
+        wakeUpCount++;
+    }
+}
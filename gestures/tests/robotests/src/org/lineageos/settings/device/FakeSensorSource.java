@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.lineageos.settings.device;
+
+import android.hardware.SensorEventListener;
+import android.os.Handler;
+
+/* Stands in for the hub's gesture sensor, events are fed through dispatchSensorEvent() */
+class FakeSensorSource implements GestureMotionSensor.SensorSource {
+
+    boolean present = true;
+    boolean registerResult = true;
+    int registerCount;
+    int unregisterCount;
+    int maxReportLatencyUs = -1;
+    SensorEventListener listener;
+
+    @Override
+    public boolean findSensor() {
+        return present;
+    }
+
+    @Override
+    public boolean hasSensor() {
+        return present;
+    }
+
+    @Override
+    public boolean registerListener(SensorEventListener listener, int maxReportLatencyUs,
+            Handler handler) {
+        registerCount++;
+        if (!present || !registerResult) {
+            return false;
+        }
+        this.listener = listener;
+        this.maxReportLatencyUs = maxReportLatencyUs;
+        return true;
+    }
+
+    @Override
+    public void unregisterListener(SensorEventListener listener) {
+        unregisterCount++;
+        this.listener = null;
+        maxReportLatencyUs = -1;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+/*
+ * Cost of arming on display off and disarming on display on: the control
+ * node write and the sensor registration, here against a file and a fake.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class GestureArmingBenchmark {
+
+    private static final int DOUBLE_TAP = GestureMotionSensor.SENSOR_GESTURE_DOUBLE_TAP;
+    private static final int SWIPE_UP = GestureMotionSensor.SENSOR_GESTURE_SWIPE_UP;
+    private static final int CAMERA = GestureMotionSensor.SENSOR_GESTURE_CAMERA;
+
+    /* Each operation writes the control node */
+    private static final int WARMUP_OPS = 2000;
+    private static final int MEASURED_OPS = 10000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private FakeSensorSource mSource;
+    private GestureControlNode mNode;
+    private GestureReconciler mReconciler;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLooper.pauseMainLooper();
+        mSource = new FakeSensorSource();
+        mNode = new GestureControlNode(mFolder.newFile("gesture_motion").getPath());
+        mReconciler = new GestureReconciler(new GestureMotionSensor(null, mSource, mNode));
+    }
+
+    @Test
+    public void armDisarm() {
+        BenchmarkHarness.run("arm/disarm", WARMUP_OPS, MEASURED_OPS,
+                new BenchmarkHarness.Operation() {
+            @Override
+            public void run(int iteration) {
+                mReconciler.reconcile(iteration % 2 == 0, DOUBLE_TAP | CAMERA);
+                /* Includes the deferred control node update */
+                ShadowLooper.runUiThreadTasks();
+            }
+        });
+
+        assertEquals((WARMUP_OPS + MEASURED_OPS) / 2, mSource.registerCount);
+    }
+
+    @Test
+    public void maskChangeWhileArmed() {
+        mReconciler.reconcile(true, DOUBLE_TAP);
+
+        BenchmarkHarness.run("armed mask change", WARMUP_OPS, MEASURED_OPS,
+                new BenchmarkHarness.Operation() {
+            @Override
+            public void run(int iteration) {
+                mReconciler.reconcile(true, iteration % 2 == 0
+                        ? DOUBLE_TAP | SWIPE_UP : DOUBLE_TAP);
+                ShadowLooper.runUiThreadTasks();
+            }
+        });
+
+        assertEquals(1 + WARMUP_OPS + MEASURED_OPS, mNode.getWriteCount());
+        assertEquals(1, mSource.registerCount);
+    }
+
+    @Test
+    public void unchangedWhileArmed() {
+        mReconciler.reconcile(true, DOUBLE_TAP | CAMERA);
+        final int writes = mNode.getWriteCount();
+
+        BenchmarkHarness.run("armed no-op reconcile", new BenchmarkHarness.Operation() {
+            @Override
+            public void run(int iteration) {
+                mReconciler.reconcile(true, DOUBLE_TAP | CAMERA);
+            }
+        });
+
+        assertEquals(writes, mNode.getWriteCount());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.AudioManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/*
+ * Cost of applying a preference change: reading the bindings, building the
+ * new config and its ready-to-run actions, and compiling sequence patterns.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class GestureConfigBenchmark {
+
+    private SharedPreferences mPrefs;
+    private GestureConfig mConfig;
+    private GestureActionRegistry mRegistry;
+
+    private final RecordingHost mHost = new RecordingHost();
+
+    @Before
+    public void setUp() {
+        mPrefs = RuntimeEnvironment.application.getSharedPreferences("benchmark",
+                Context.MODE_PRIVATE);
+        mPrefs.edit()
+                .putString(HtcGestureService.KEY_SWIPE_UP,
+                        Integer.toString(GestureConfig.ACTION_TORCH))
+                .putString(HtcGestureService.KEY_SWIPE_DOWN,
+                        Integer.toString(GestureConfig.ACTION_MEDIA_PLAY_PAUSE))
+                .putString(HtcGestureService.KEY_SWIPE_LEFT,
+                        Integer.toString(GestureConfig.ACTION_MEDIA_PREVIOUS))
+                .putString(HtcGestureService.KEY_SWIPE_RIGHT,
+                        Integer.toString(GestureConfig.ACTION_LAUNCH_APP))
+                .putString(HtcGestureService.KEY_SWIPE_RIGHT_TARGET,
+                        "intent:#Intent;action=android.intent.action.MAIN;end")
+                .putString(HtcGestureService.KEY_SEQUENCES,
+                        "swipe_up,swipe_right:torch;swipe_left,swipe_up,swipe_right:camera;"
+                        + "swipe_down,swipe_up:wake")
+                .commit();
+        mConfig = new GestureConfig(HtcGestureService.loadActions(mPrefs),
+                HtcGestureService.loadTargets(mPrefs), true, true,
+                AudioManager.RINGER_MODE_NORMAL, false);
+        mRegistry = new GestureActionRegistry(mHost, GestureClock.SYSTEM);
+    }
+
+    @Test
+    public void reloadActions() {
+        BenchmarkHarness.run("reload actions", new BenchmarkHarness.Operation() {
+            @Override
+            public void run(int iteration) {
+                /* What the service does on a binding change, less the reconcile it posts */
+                mConfig = mConfig.withActions(HtcGestureService.loadActions(mPrefs),
+                        HtcGestureService.loadTargets(mPrefs));
+                mRegistry.update(mConfig);
+            }
+        });
+
+        assertEquals(GestureConfig.ACTION_TORCH,
+                mRegistry.getActionType(GestureMotionSensor.GESTURE_INDEX_SWIPE_UP));
+    }
+
+    @Test
+    public void reloadSequences() {
+        final GestureSequenceRecognizer recognizer = new GestureSequenceRecognizer(
+                new Handler(Looper.getMainLooper()), GestureClock.SYSTEM,
+                new GestureMotionSensor.GestureMotionSensorListener() {
+                    @Override
+                    public void onEvent(int gesture, long timestamp) {
+                    }
+                },
+                new GestureSequenceRecognizer.Callbacks() {
+                    @Override
+                    public void onSequencePending(int gestureIndex, long timeoutMs) {
+                    }
+
+                    @Override
+                    public void onSequence(int action, int gestureIndex, long timestamp) {
+                    }
+                }, 800);
+
+        BenchmarkHarness.run("reload sequences", new BenchmarkHarness.Operation() {
+            @Override
+            public void run(int iteration) {
+                recognizer.setPatterns(mPrefs.getString(HtcGestureService.KEY_SEQUENCES, null));
+            }
+        });
+
+        assertEquals(GestureMotionSensor.SENSOR_GESTURE_SWIPE_UP
+                | GestureMotionSensor.SENSOR_GESTURE_SWIPE_DOWN
+                | GestureMotionSensor.SENSOR_GESTURE_SWIPE_LEFT
+                | GestureMotionSensor.SENSOR_GESTURE_SWIPE_RIGHT, recognizer.getGestures());
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class GestureControlNodeTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private GestureControlNode mNode;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "gesture_motion");
+        mNode = new GestureControlNode(mFile.getPath());
+    }
+
+    @Test
+    public void write_missingNode_failsAndRetriesOnceItAppears() throws Exception {
+        assertFalse(mNode.isAccessible());
+        assertFalse(mNode.write(0x8000));
+
+        mFile.createNewFile();
+
+        assertTrue(mNode.isAccessible());
+        assertTrue(mNode.write(0x8000));
+        assertEquals(0x8000, mNode.read());
+    }
+
+    @Test
+    public void write_unchangedMask_isSkipped() throws Exception {
+        mFile.createNewFile();
+
+        assertTrue(mNode.write(0x24));
+        assertTrue(mNode.write(0x24));
+
+        assertEquals(1, mNode.getWriteCount());
+        assertEquals(1, mNode.getSkipCount());
+        assertEquals(0x24, mNode.getWrittenMask());
+    }
+
+    @Test
+    public void invalidate_forcesNextWrite() throws Exception {
+        mFile.createNewFile();
+        mNode.write(0x24);
+
+        mNode.invalidate();
+
+        assertEquals(-1, mNode.getWrittenMask());
+        assertTrue(mNode.write(0x24));
+        assertEquals(2, mNode.getWriteCount());
+    }
+
+    @Test
+    public void read_acceptsHexPrefixAndRejectsGarbage() throws Exception {
+        mFile.createNewFile();
+
+        GestureTestUtils.writeFile(mFile, "0x8024\n");
+        assertEquals(0x8024, mNode.read());
+
+        GestureTestUtils.writeFile(mFile, "not a mask\n");
+        assertEquals(-1, mNode.read());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import android.media.AudioManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/*
+ * Checks that a sensor event allocates nothing on its way through the
+ * dispatcher to the action: decoding, coalescing, sequence pass-through,
+ * pocket gating, wakelock and wake-up handling, energy and latency accounting,
+ * flight recording and action dispatch, for every action but media keys.
+ * Sequence patterns that hold a gesture back post a timeout message and are
+ * not covered.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class GestureDispatchAllocationTest {
+
+    /* A multiple of the number of event IDs, so every gesture is seen as often */
+    private static final int EVENT_COUNT = 9996;
+
+    /* Raw sensor event IDs, see GestureMotionSensor */
+    private static final int[] EVENT_IDS = { 15, 2, 3, 4, 5, 6 };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final VirtualGestureClock mClock = new VirtualGestureClock(1000000000L);
+    private final RecordingHost mHost = new RecordingHost();
+    private GestureMotionSensor mSensor;
+
+    private final PocketDetector.ProximitySource mNoProximity =
+            new PocketDetector.ProximitySource() {
+        @Override
+        public boolean isAvailable() {
+            return false;
+        }
+
+        @Override
+        public void start(PocketDetector.ProximityListener listener, Handler handler) {
+        }
+
+        @Override
+        public void stop() {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        /* Keeps the energy stats save pending instead of writing the file */
+        ShadowLooper.pauseMainLooper();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final GestureLatencyTracker tracker = new GestureLatencyTracker();
+        final GestureFlightRecorder recorder = new GestureFlightRecorder(
+                mFolder.newFile("recorder"), 64, mClock);
+        mSensor = new GestureMotionSensor(null, new FakeSensorSource(),
+                new GestureControlNode(mFolder.newFile("gesture_motion").getPath()));
+        mSensor.setClock(mClock);
+        mSensor.setLatencyTracker(tracker);
+        mSensor.setFlightRecorder(recorder);
+
+        final GestureActionRegistry registry = new GestureActionRegistry(mHost, mClock);
+        /* The shadowed power manager allocates on every call, so it's faked */
+        final GestureWakeManager wakeManager =
+                new GestureWakeManager(new FakePowerSource(), mClock);
+        final GestureEnergyStats stats = new GestureEnergyStats(
+                new File(mFolder.getRoot(), "energy_stats"), handler, mClock, 10000);
+        final GestureDispatcher dispatcher = new GestureDispatcher(mSensor, registry,
+                wakeManager, stats, tracker, mNoProximity, handler, mClock, 800);
+        dispatcher.setFlightRecorder(recorder);
+        mHost.setDispatcher(dispatcher);
+
+        final int[] actions = new int[GestureMotionSensor.GESTURE_COUNT];
+        actions[GestureMotionSensor.GESTURE_INDEX_DOUBLE_TAP] = GestureConfig.ACTION_WAKE;
+        actions[GestureMotionSensor.GESTURE_INDEX_SWIPE_UP] = GestureConfig.ACTION_TORCH;
+        /* Media keys are copied with the current time, so they're left out */
+        actions[GestureMotionSensor.GESTURE_INDEX_SWIPE_DOWN] = GestureConfig.ACTION_WAKE;
+        actions[GestureMotionSensor.GESTURE_INDEX_SWIPE_LEFT] = GestureConfig.ACTION_TORCH;
+        actions[GestureMotionSensor.GESTURE_INDEX_SWIPE_RIGHT] =
+                GestureConfig.ACTION_LAUNCH_APP;
+        actions[GestureMotionSensor.GESTURE_INDEX_CAMERA] = GestureConfig.ACTION_CAMERA;
+        final String[] targets = new String[GestureMotionSensor.GESTURE_COUNT];
+        targets[GestureMotionSensor.GESTURE_INDEX_SWIPE_RIGHT] =
+                "intent:#Intent;action=android.intent.action.MAIN;end";
+        final GestureConfig config = new GestureConfig(actions, targets, true, true,
+                AudioManager.RINGER_MODE_NORMAL, false);
+        dispatcher.setConfig(config);
+        registry.update(config);
+
+        mSensor.registerListener(dispatcher);
+        mSensor.setEnabledGestures(~0);
+    }
+
+    private void dispatch(int count) {
+        for (int i = 0; i < count; i++) {
+            /* Far enough apart not to be merged, recent enough not to be dropped */
+            mClock.advanceMillis(500);
+            final long timestamp = mClock.elapsedRealtimeNanos();
+            mClock.advanceMillis(1);
+            mSensor.dispatchSensorEvent(EVENT_IDS[i % EVENT_IDS.length], timestamp,
+                    mClock.elapsedRealtimeNanos());
+        }
+    }
+
+    @Test
+    public void dispatch_allocatesNothing() {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final long thread = Thread.currentThread().getId();
+
+        /* Load and initialize everything on the path first */
+        dispatch(EVENT_COUNT);
+
+        /* Reading the counter allocates by itself, measure that first */
+        long before = threads.getThreadAllocatedBytes(thread);
+        final long overhead = threads.getThreadAllocatedBytes(thread) - before;
+
+        before = threads.getThreadAllocatedBytes(thread);
+        dispatch(EVENT_COUNT);
+        final long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+
+        assertEquals(0, allocated);
+
+        /* Every gesture got through, over both rounds */
+        final int perGesture = 2 * EVENT_COUNT / EVENT_IDS.length;
+        assertEquals(perGesture, mHost.getCount(RecordingHost.CALL_CAMERA));
+        assertEquals(2 * perGesture, mHost.getCount(RecordingHost.CALL_TORCH));
+        assertEquals(perGesture, mHost.getCount(RecordingHost.CALL_ACTIVITY));
+        /* Double tap, swipe down, both torches and the app launch wake the device */
+        assertEquals(5 * perGesture, mHost.getCount(RecordingHost.CALL_WAKE_UP));
+    }
+}
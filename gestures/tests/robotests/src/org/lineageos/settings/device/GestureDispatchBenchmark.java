@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertEquals;
+
+import android.media.AudioManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+
+/*
+ * Throughput, per-event latency and allocations of a raw sensor event on its
+ * way to the action: decoding, coalescing, flight recording, the sequence
+ * recognizer, wakelock and wake-up handling and action dispatch.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class GestureDispatchBenchmark {
+
+    /* Raw sensor event IDs, see GestureMotionSensor */
+    private static final int[] EVENT_IDS = { 15, 2, 3, 4, 5, 6 };
+    private static final int EVENT_ID_SWIPE_UP = 2;
+    private static final int EVENT_ID_SWIPE_RIGHT = 5;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final VirtualGestureClock mClock = new VirtualGestureClock(1000000000L);
+    private GestureMotionSensor mSensor;
+    private GestureDispatcher mDispatcher;
+
+    private final RecordingHost mHost = new RecordingHost();
+
+    private final PocketDetector.ProximitySource mNoProximity =
+            new PocketDetector.ProximitySource() {
+        @Override
+        public boolean isAvailable() {
+            return false;
+        }
+
+        @Override
+        public void start(PocketDetector.ProximityListener listener, Handler handler) {
+        }
+
+        @Override
+        public void stop() {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLooper.pauseMainLooper();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final GestureLatencyTracker tracker = new GestureLatencyTracker();
+        final GestureFlightRecorder recorder = new GestureFlightRecorder(
+                mFolder.newFile("recorder"), GestureFlightRecorder.DEFAULT_CAPACITY, mClock);
+        mSensor = new GestureMotionSensor(null, new FakeSensorSource(),
+                new GestureControlNode(mFolder.newFile("gesture_motion").getPath()));
+        mSensor.setClock(mClock);
+        mSensor.setLatencyTracker(tracker);
+        mSensor.setFlightRecorder(recorder);
+
+        final GestureActionRegistry registry = new GestureActionRegistry(mHost, mClock);
+        final GestureWakeManager wakeManager = new GestureWakeManager(
+                new FakePowerSource(), mClock);
+        final GestureEnergyStats stats = new GestureEnergyStats(
+                new File(mFolder.getRoot(), "energy_stats"), handler, mClock, 10000);
+        mDispatcher = new GestureDispatcher(mSensor, registry, wakeManager, stats, tracker,
+                mNoProximity, handler, mClock, 800);
+        mDispatcher.setFlightRecorder(recorder);
+        mHost.setDispatcher(mDispatcher);
+
+        final int[] actions = new int[GestureMotionSensor.GESTURE_COUNT];
+        actions[GestureMotionSensor.GESTURE_INDEX_DOUBLE_TAP] = GestureConfig.ACTION_WAKE;
+        actions[GestureMotionSensor.GESTURE_INDEX_SWIPE_UP] = GestureConfig.ACTION_TORCH;
+        actions[GestureMotionSensor.GESTURE_INDEX_SWIPE_DOWN] =
+                GestureConfig.ACTION_MEDIA_PLAY_PAUSE;
+        actions[GestureMotionSensor.GESTURE_INDEX_SWIPE_LEFT] =
+                GestureConfig.ACTION_MEDIA_PREVIOUS;
+        actions[GestureMotionSensor.GESTURE_INDEX_SWIPE_RIGHT] =
+                GestureConfig.ACTION_LAUNCH_APP;
+        actions[GestureMotionSensor.GESTURE_INDEX_CAMERA] = GestureConfig.ACTION_CAMERA;
+        final String[] targets = new String[GestureMotionSensor.GESTURE_COUNT];
+        targets[GestureMotionSensor.GESTURE_INDEX_SWIPE_RIGHT] =
+                "intent:#Intent;action=android.intent.action.MAIN;end";
+        final GestureConfig config = new GestureConfig(actions, targets, true, true,
+                AudioManager.RINGER_MODE_NORMAL, false);
+        mDispatcher.setConfig(config);
+        registry.update(config);
+
+        mSensor.registerListener(mDispatcher);
+        mSensor.setEnabledGestures(~0);
+    }
+
+    private void dispatch(int eventId, long intervalMs) {
+        /* Far enough apart not to be merged, recent enough not to be dropped */
+        mClock.advanceMillis(intervalMs - 1);
+        final long timestamp = mClock.elapsedRealtimeNanos();
+        mClock.advanceMillis(1);
+        mSensor.dispatchSensorEvent(eventId, timestamp, mClock.elapsedRealtimeNanos());
+    }
+
+    @Test
+    public void singleGestures() {
+        BenchmarkHarness.run("dispatch single gestures", new BenchmarkHarness.Operation() {
+            @Override
+            public void run(int iteration) {
+                dispatch(EVENT_IDS[iteration % EVENT_IDS.length], 500);
+            }
+        });
+
+        /* Each gesture got the same share of the events */
+        final int perGesture = (BenchmarkHarness.WARMUP_OPS + BenchmarkHarness.MEASURED_OPS)
+                / EVENT_IDS.length;
+        assertEquals(perGesture, mHost.getCount(RecordingHost.CALL_CAMERA));
+        assertEquals(perGesture, mHost.getCount(RecordingHost.CALL_TORCH));
+        assertEquals(perGesture, mHost.getCount(RecordingHost.CALL_ACTIVITY));
+        assertEquals(2 * perGesture, mHost.getCount(RecordingHost.CALL_MEDIA_KEY));
+    }
+
+    @Test
+    public void sequences() {
+        mDispatcher.setSequencePatterns("swipe_up,swipe_right:torch");
+
+        BenchmarkHarness.run("dispatch sequence gestures", new BenchmarkHarness.Operation() {
+            @Override
+            public void run(int iteration) {
+                /* Every second event completes the pattern */
+                dispatch(iteration % 2 == 0 ? EVENT_ID_SWIPE_UP : EVENT_ID_SWIPE_RIGHT, 400);
+            }
+        });
+
+        assertEquals((BenchmarkHarness.WARMUP_OPS + BenchmarkHarness.MEASURED_OPS) / 2,
+                mHost.getCount(RecordingHost.CALL_TORCH));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class GestureEnergyStatsTest {
+
+    private static final long WINDOW_MS = 10000;
+    private static final int TAP = GestureMotionSensor.GESTURE_INDEX_DOUBLE_TAP;
+    private static final int CAMERA = GestureMotionSensor.GESTURE_INDEX_CAMERA;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final VirtualGestureClock mClock = new VirtualGestureClock(0);
+    private File mFile;
+    private GestureEnergyStats mStats;
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+        mFile = new File(mFolder.getRoot(), "stats");
+        mStats = new GestureEnergyStats(mFile, new Handler(Looper.getMainLooper()), mClock,
+                WINDOW_MS);
+    }
+
+    @Test
+    public void wakeUp_displayOffWithinWindow_isFalsePositive() {
+        mStats.onWakeUp(TAP);
+        mClock.advanceMillis(WINDOW_MS);
+        mStats.onDisplayOff();
+
+        assertEquals(1, mStats.get(TAP, GestureEnergyStats.STAT_FALSE_POSITIVES));
+    }
+
+    @Test
+    public void wakeUp_displayOffAfterWindow_isNot() {
+        mStats.onWakeUp(TAP);
+        mClock.advanceMillis(WINDOW_MS + 1);
+        mStats.onDisplayOff();
+
+        assertEquals(0, mStats.get(TAP, GestureEnergyStats.STAT_FALSE_POSITIVES));
+    }
+
+    @Test
+    public void wakeUp_userPresent_isNot() {
+        mStats.onWakeUp(TAP);
+        mStats.onUserPresent();
+        mStats.onDisplayOff();
+
+        assertEquals(0, mStats.get(TAP, GestureEnergyStats.STAT_FALSE_POSITIVES));
+    }
+
+    @Test
+    public void wakeUp_interactionOverKeyguard_isNot() {
+        mStats.onWakeUp(CAMERA);
+        mStats.onInteraction();
+        mStats.onDisplayOff();
+
+        assertEquals(1, mStats.get(CAMERA, GestureEnergyStats.STAT_WAKE_UPS));
+        assertEquals(0, mStats.get(CAMERA, GestureEnergyStats.STAT_FALSE_POSITIVES));
+    }
+
+    @Test
+    public void save_runsOnSaveHandlerOnly() {
+        mStats.onEvent(TAP);
+        assertFalse(mFile.exists());
+
+        ShadowLooper.idleMainLooper(15 * 60 * 1000);
+
+        assertTrue(mFile.exists());
+        assertEquals(1, GestureEnergyStats.getSaved(GestureEnergyStats.readSaved(mFile), TAP,
+                GestureEnergyStats.STAT_EVENTS));
+    }
+
+    @Test
+    public void flush_savesAndReloads() {
+        mStats.onEvent(TAP);
+        mStats.onAction(TAP);
+        mStats.onWakeLockHeld(TAP, 300);
+        mStats.flush();
+
+        final GestureEnergyStats reloaded = new GestureEnergyStats(mFile,
+                new Handler(Looper.getMainLooper()), mClock, WINDOW_MS);
+
+        assertEquals(1, reloaded.get(TAP, GestureEnergyStats.STAT_EVENTS));
+        assertEquals(1, reloaded.get(TAP, GestureEnergyStats.STAT_ACTIONS));
+        assertEquals(300, reloaded.get(TAP, GestureEnergyStats.STAT_WAKELOCK_MS));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class GestureHealthWatchdogTest {
+
+    private static final int GESTURES = GestureMotionSensor.SENSOR_GESTURE_DOUBLE_TAP
+            | GestureMotionSensor.SENSOR_GESTURE_SWIPE_UP;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private FakeSensorSource mSource;
+    private GestureControlNode mNode;
+    private GestureMotionSensor mSensor;
+    private GestureReconciler mReconciler;
+    private GestureHealthWatchdog mWatchdog;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLooper.pauseMainLooper();
+        mFile = mFolder.newFile("gesture_motion");
+        mSource = new FakeSensorSource();
+        mNode = new GestureControlNode(mFile.getPath());
+        mSensor = new GestureMotionSensor(null, mSource, mNode);
+        mReconciler = new GestureReconciler(mSensor);
+    }
+
+    private void createWatchdog(boolean verifyReadback) {
+        mWatchdog = new GestureHealthWatchdog(mSensor, mNode,
+                new Handler(Looper.getMainLooper()), GestureClock.SYSTEM, verifyReadback);
+        mReconciler.setHealthWatchdog(mWatchdog);
+    }
+
+    @Test
+    public void arm_healthy_noRecovery() {
+        createWatchdog(true);
+
+        mReconciler.reconcile(true, GESTURES);
+        ShadowLooper.runUiThreadTasks();
+
+        assertTrue(mWatchdog.isHealthy());
+        assertEquals(0, mWatchdog.getRecoveryAttemptCount());
+    }
+
+    @Test
+    public void missingSensor_retriesWithBackoff() {
+        mSource.present = false;
+        createWatchdog(false);
+
+        mReconciler.reconcile(true, GESTURES);
+        ShadowLooper.runUiThreadTasks();
+        assertFalse(mWatchdog.isHealthy());
+
+        /* 1s, then 2s, then 4s */
+        ShadowLooper.idleMainLooper(999);
+        assertEquals(0, mWatchdog.getRecoveryAttemptCount());
+        ShadowLooper.idleMainLooper(1);
+        assertEquals(1, mWatchdog.getRecoveryAttemptCount());
+        ShadowLooper.idleMainLooper(1999);
+        assertEquals(1, mWatchdog.getRecoveryAttemptCount());
+        ShadowLooper.idleMainLooper(1);
+        assertEquals(2, mWatchdog.getRecoveryAttemptCount());
+
+        mSource.present = true;
+        ShadowLooper.idleMainLooper(4000);
+
+        assertEquals(3, mWatchdog.getRecoveryAttemptCount());
+        assertTrue(mWatchdog.isHealthy());
+        assertEquals(1, mWatchdog.getRecoveredCount());
+        assertTrue(mSensor.isListening());
+        assertEquals(GESTURES, mNode.read());
+    }
+
+    @Test
+    public void missingSensor_givesUpUntilArmingChanges() {
+        mSource.present = false;
+        createWatchdog(false);
+
+        mReconciler.reconcile(true, GESTURES);
+        ShadowLooper.runUiThreadTasks();
+        ShadowLooper.idleMainLooper(60 * 60 * 1000);
+
+        assertEquals(10, mWatchdog.getRecoveryAttemptCount());
+        assertFalse(mWatchdog.isHealthy());
+
+        /* Reconciling the same state doesn't start over */
+        mSource.present = true;
+        mReconciler.reconcile(true, GESTURES);
+        ShadowLooper.idleMainLooper(60 * 60 * 1000);
+        assertEquals(10, mWatchdog.getRecoveryAttemptCount());
+        assertFalse(mWatchdog.isHealthy());
+
+        /* A new arming state does */
+        mReconciler.reconcile(true, GestureMotionSensor.SENSOR_GESTURE_DOUBLE_TAP);
+        ShadowLooper.runUiThreadTasks();
+        ShadowLooper.idleMainLooper(1000);
+
+        assertTrue(mWatchdog.isHealthy());
+        assertEquals(1, mWatchdog.getRecoveredCount());
+    }
+
+    @Test
+    public void readbackMismatch_rewritesNode() throws Exception {
+        createWatchdog(true);
+        mReconciler.reconcile(true, GESTURES);
+        ShadowLooper.runUiThreadTasks();
+        assertTrue(mWatchdog.isHealthy());
+
+        /* The hub lost the mask behind our back, e.g. after a reset */
+        GestureTestUtils.writeFile(mFile, "0\n");
+        mWatchdog.setExpectedGestures(GESTURES);
+        ShadowLooper.runUiThreadTasks();
+        assertFalse(mWatchdog.isHealthy());
+
+        ShadowLooper.idleMainLooper(1000);
+
+        assertTrue(mWatchdog.isHealthy());
+        assertEquals(GESTURES, mNode.read());
+        assertEquals(1, mWatchdog.getRecoveredCount());
+    }
+
+    @Test
+    public void readbackDisabled_ignoresNodeContents() throws Exception {
+        createWatchdog(false);
+        mReconciler.reconcile(true, GESTURES);
+        ShadowLooper.runUiThreadTasks();
+
+        GestureTestUtils.writeFile(mFile, "0\n");
+        mWatchdog.setExpectedGestures(GESTURES);
+        ShadowLooper.runUiThreadTasks();
+
+        assertTrue(mWatchdog.isHealthy());
+    }
+
+    @Test
+    public void failedRegistration_isRedone() {
+        mSource.registerResult = false;
+        createWatchdog(false);
+
+        mReconciler.reconcile(true, GESTURES);
+        ShadowLooper.runUiThreadTasks();
+        assertFalse(mWatchdog.isHealthy());
+
+        mSource.registerResult = true;
+        ShadowLooper.idleMainLooper(1000);
+
+        assertTrue(mWatchdog.isHealthy());
+        assertEquals(GestureMotionSensor.BATCH_LATENCY_IN_MS * 1000, mSource.maxReportLatencyUs);
+    }
+}
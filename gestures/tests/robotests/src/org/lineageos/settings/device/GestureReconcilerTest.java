@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class GestureReconcilerTest {
+
+    private static final int DOUBLE_TAP = GestureMotionSensor.SENSOR_GESTURE_DOUBLE_TAP;
+    private static final int SWIPE_UP = GestureMotionSensor.SENSOR_GESTURE_SWIPE_UP;
+    private static final int CAMERA = GestureMotionSensor.SENSOR_GESTURE_CAMERA;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private FakeSensorSource mSource;
+    private GestureControlNode mNode;
+    private GestureMotionSensor mSensor;
+    private GestureReconciler mReconciler;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLooper.pauseMainLooper();
+        mSource = new FakeSensorSource();
+        mNode = new GestureControlNode(mFolder.newFile("gesture_motion").getPath());
+        mSensor = new GestureMotionSensor(null, mSource, mNode);
+        mReconciler = new GestureReconciler(mSensor);
+    }
+
+    @Test
+    public void reconcile_disarmed_touchesNothing() {
+        assertEquals(0, mReconciler.reconcile(false, DOUBLE_TAP));
+
+        assertFalse(mSensor.isListening());
+        assertEquals(0, mNode.getWriteCount());
+        assertEquals(0, mSource.registerCount);
+    }
+
+    @Test
+    public void reconcile_arm_writesMaskAndRegisters() {
+        assertEquals(DOUBLE_TAP | SWIPE_UP, mReconciler.reconcile(true, DOUBLE_TAP | SWIPE_UP));
+
+        assertTrue(mSensor.isListening());
+        assertEquals(DOUBLE_TAP | SWIPE_UP, mNode.read());
+        assertEquals(1, mNode.getWriteCount());
+        assertEquals(1, mSource.registerCount);
+    }
+
+    @Test
+    public void reconcile_unchangedWhileArmed_isFree() {
+        mReconciler.reconcile(true, DOUBLE_TAP);
+
+        mReconciler.reconcile(true, DOUBLE_TAP);
+        ShadowLooper.runUiThreadTasks();
+
+        assertEquals(1, mNode.getWriteCount());
+        assertEquals(1, mSource.registerCount);
+    }
+
+    @Test
+    public void reconcile_maskChangesWhileArmed_mergeIntoOneWrite() {
+        mReconciler.reconcile(true, DOUBLE_TAP);
+
+        mReconciler.reconcile(true, DOUBLE_TAP | SWIPE_UP);
+        mReconciler.reconcile(true, SWIPE_UP);
+        ShadowLooper.runUiThreadTasks();
+
+        assertEquals(SWIPE_UP, mNode.read());
+        assertEquals(2, mNode.getWriteCount());
+        /* Same batch latency, so no need to register again */
+        assertEquals(1, mSource.registerCount);
+    }
+
+    @Test
+    public void reconcile_lowLatencyGestureArmed_registersAgain() {
+        mSensor.setLowLatencyGestures(CAMERA);
+        mReconciler.reconcile(true, DOUBLE_TAP);
+        assertEquals(GestureMotionSensor.BATCH_LATENCY_IN_MS * 1000, mSource.maxReportLatencyUs);
+
+        mReconciler.reconcile(true, DOUBLE_TAP | CAMERA);
+        ShadowLooper.runUiThreadTasks();
+
+        assertEquals(GestureMotionSensor.LOW_BATCH_LATENCY_IN_MS * 1000,
+                mSource.maxReportLatencyUs);
+        assertEquals(2, mSource.registerCount);
+    }
+
+    @Test
+    public void reconcile_disarm_clearsMaskAndUnregisters() {
+        mReconciler.reconcile(true, DOUBLE_TAP);
+
+        assertEquals(0, mReconciler.reconcile(false, DOUBLE_TAP));
+        ShadowLooper.runUiThreadTasks();
+
+        assertFalse(mSensor.isListening());
+        assertEquals(0, mNode.read());
+        assertEquals(1, mSource.unregisterCount);
+    }
+
+    @Test
+    public void reconcile_nothingWanted_disarms() {
+        mReconciler.reconcile(true, DOUBLE_TAP);
+
+        assertEquals(0, mReconciler.reconcile(true, 0));
+
+        assertFalse(mSensor.isListening());
+        assertEquals(0, mNode.read());
+    }
+
+    @Test
+    public void reconcile_failedWrite_reportsNothingArmed() {
+        mFolder.delete();
+
+        assertEquals(0, mReconciler.reconcile(true, DOUBLE_TAP));
+        assertFalse(mSensor.isListening());
+    }
+}
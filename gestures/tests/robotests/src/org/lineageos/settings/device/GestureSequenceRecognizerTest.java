@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class GestureSequenceRecognizerTest {
+
+    private static final long TIMEOUT_MS = 800;
+    private static final long MS = 1000000L;
+    private static final long T0 = 1000 * MS;
+
+    private static final int DOUBLE_TAP = GestureMotionSensor.SENSOR_GESTURE_DOUBLE_TAP;
+    private static final int UP = GestureMotionSensor.SENSOR_GESTURE_SWIPE_UP;
+    private static final int DOWN = GestureMotionSensor.SENSOR_GESTURE_SWIPE_DOWN;
+    private static final int LEFT = GestureMotionSensor.SENSOR_GESTURE_SWIPE_LEFT;
+    private static final int RIGHT = GestureMotionSensor.SENSOR_GESTURE_SWIPE_RIGHT;
+
+    private final VirtualGestureClock mClock = new VirtualGestureClock(T0);
+    /* "gesture@timestamp" for single gestures, "action:gesture@timestamp" for matches */
+    private final List<String> mEvents = new ArrayList<>();
+    private int mPendingCount;
+    private GestureSequenceRecognizer mRecognizer;
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+        mRecognizer = new GestureSequenceRecognizer(new Handler(Looper.getMainLooper()), mClock,
+                new GestureMotionSensor.GestureMotionSensorListener() {
+                    @Override
+                    public void onEvent(int gesture, long timestamp) {
+                        mEvents.add(name(gesture) + "@" + timestamp / MS);
+                    }
+                },
+                new GestureSequenceRecognizer.Callbacks() {
+                    @Override
+                    public void onSequencePending(int gestureIndex, long timeoutMs) {
+                        mPendingCount++;
+                        assertEquals(TIMEOUT_MS + GestureMotionSensor.BATCH_LATENCY_IN_MS,
+                                timeoutMs);
+                    }
+
+                    @Override
+                    public void onSequence(int action, int gestureIndex, long timestamp) {
+                        mEvents.add(action + ":"
+                                + GestureMotionSensor.gestureIndexToString(gestureIndex)
+                                + "@" + timestamp / MS);
+                    }
+                }, TIMEOUT_MS);
+    }
+
+    private static String name(int gesture) {
+        return GestureMotionSensor.gestureIndexToString(
+                GestureMotionSensor.gestureToIndex(gesture));
+    }
+
+    /* Delivers an event the way the sensor does, with the clock at its arrival */
+    private void event(int gesture, long timeMs) {
+        mClock.setNanos(T0 + timeMs * MS);
+        mRecognizer.onEvent(gesture, T0 + timeMs * MS);
+    }
+
+    /* Lets the given time pass without events, running the timeout if it's due */
+    private void idle(long ms) {
+        mClock.advanceMillis(ms);
+        ShadowLooper.idleMainLooper(ms);
+    }
+
+    private void assertEvents(String... expected) {
+        assertEquals(Arrays.asList(expected), mEvents);
+    }
+
+    @Test
+    public void noPatterns_passesThrough() {
+        event(UP, 0);
+        event(RIGHT, 100);
+
+        assertEvents("swipe_up@1000", "swipe_right@1100");
+        assertEquals(0, mPendingCount);
+    }
+
+    @Test
+    public void gestureOutsidePatterns_passesThrough() {
+        mRecognizer.setPatterns("swipe_up,swipe_right:torch");
+
+        event(DOUBLE_TAP, 0);
+
+        assertEvents("double_tap@1000");
+        assertEquals(0, mPendingCount);
+    }
+
+    @Test
+    public void pattern_matches() {
+        mRecognizer.setPatterns("swipe_up,swipe_right:torch");
+
+        event(UP, 0);
+        assertEvents();
+        assertEquals(1, mPendingCount);
+        event(RIGHT, 300);
+
+        assertEvents(GestureConfig.ACTION_TORCH + ":swipe_right@1300");
+        idle(10000);
+        assertEquals(1, mEvents.size());
+    }
+
+    @Test
+    public void pattern_matchesFromOneFifoFlush() {
+        mRecognizer.setPatterns("swipe_up,swipe_right:torch");
+
+        /* Both events arrive together, long after they happened */
+        mClock.setNanos(T0 + 900 * MS);
+        mRecognizer.onEvent(UP, T0);
+        mRecognizer.onEvent(RIGHT, T0 + 300 * MS);
+
+        assertEvents(GestureConfig.ACTION_TORCH + ":swipe_right@1300");
+    }
+
+    @Test
+    public void timeout_nextEventTooLate_replays() {
+        mRecognizer.setPatterns("swipe_up,swipe_right:torch");
+
+        event(UP, 0);
+        event(RIGHT, TIMEOUT_MS + 1);
+
+        assertEvents("swipe_up@1000", "swipe_right@1801");
+    }
+
+    @Test
+    public void timeout_noFurtherEvent_replaysAfterGrace() {
+        mRecognizer.setPatterns("swipe_up,swipe_right:torch");
+
+        event(UP, 0);
+        idle(TIMEOUT_MS + GestureMotionSensor.BATCH_LATENCY_IN_MS - 1);
+        assertEvents();
+        idle(1);
+
+        assertEvents("swipe_up@1000");
+    }
+
+    @Test
+    public void timeout_timerEarly_waitsForDeadline() {
+        mRecognizer.setPatterns("swipe_up,swipe_right:torch");
+
+        event(UP, 0);
+        /* The handler runs on time, but the clock lags behind, e.g. after deep sleep */
+        ShadowLooper.idleMainLooper(TIMEOUT_MS + GestureMotionSensor.BATCH_LATENCY_IN_MS);
+        assertEvents();
+
+        idle(TIMEOUT_MS + GestureMotionSensor.BATCH_LATENCY_IN_MS);
+        assertEvents("swipe_up@1000");
+    }
+
+    @Test
+    public void mismatch_replaysHeldGestures() {
+        mRecognizer.setPatterns("swipe_up,swipe_right:torch");
+
+        event(UP, 0);
+        event(DOUBLE_TAP, 100);
+
+        assertEvents("swipe_up@1000", "double_tap@1100");
+    }
+
+    @Test
+    public void mismatch_canStartNewPattern() {
+        mRecognizer.setPatterns("swipe_up,swipe_right:torch;swipe_left,swipe_up:wake");
+
+        event(LEFT, 0);
+        event(LEFT, 400);
+        event(UP, 700);
+
+        assertEvents("swipe_left@1000", GestureConfig.ACTION_WAKE + ":swipe_up@1700");
+    }
+
+    @Test
+    public void mismatch_heldSuffixStartsOtherPattern() {
+        mRecognizer.setPatterns("swipe_up,swipe_right,swipe_down:camera;"
+                + "swipe_right,swipe_left:torch");
+
+        event(UP, 0);
+        event(RIGHT, 300);
+        event(LEFT, 600);
+
+        assertEvents("swipe_up@1000", GestureConfig.ACTION_TORCH + ":swipe_left@1600");
+        idle(10000);
+        assertEquals(2, mEvents.size());
+    }
+
+    @Test
+    public void timeout_heldSuffixCompletesOtherPattern() {
+        mRecognizer.setPatterns("swipe_up,swipe_right,swipe_down,swipe_left:camera;"
+                + "swipe_right,swipe_down:torch");
+
+        event(UP, 0);
+        event(RIGHT, 300);
+        event(DOWN, 600);
+        idle(TIMEOUT_MS + GestureMotionSensor.BATCH_LATENCY_IN_MS);
+
+        assertEvents("swipe_up@1000", GestureConfig.ACTION_TORCH + ":swipe_down@1600");
+    }
+
+    @Test
+    public void prefixPattern_longerPatternWins() {
+        mRecognizer.setPatterns("swipe_up,swipe_right:torch;"
+                + "swipe_up,swipe_right,swipe_down:camera");
+
+        event(UP, 0);
+        event(RIGHT, 300);
+        assertEvents();
+        event(DOWN, 600);
+
+        assertEvents(GestureConfig.ACTION_CAMERA + ":swipe_down@1600");
+    }
+
+    @Test
+    public void prefixPattern_firesOnTimeout() {
+        mRecognizer.setPatterns("swipe_up,swipe_right:torch;"
+                + "swipe_up,swipe_right,swipe_down:camera");
+
+        event(UP, 0);
+        event(RIGHT, 300);
+        idle(TIMEOUT_MS + GestureMotionSensor.BATCH_LATENCY_IN_MS);
+
+        assertEvents(GestureConfig.ACTION_TORCH + ":swipe_right@1300");
+    }
+
+    @Test
+    public void prefixPattern_firesOnMismatch() {
+        mRecognizer.setPatterns("swipe_up,swipe_right:torch;"
+                + "swipe_up,swipe_right,swipe_down:camera");
+
+        event(UP, 0);
+        event(RIGHT, 300);
+        event(LEFT, 600);
+
+        assertEvents(GestureConfig.ACTION_TORCH + ":swipe_right@1300", "swipe_left@1600");
+    }
+
+    @Test
+    public void tableSwap_duringPartialMatch_replaysWithOldTable() {
+        mRecognizer.setPatterns("swipe_up,swipe_right:torch");
+        event(UP, 0);
+
+        mRecognizer.setPatterns("swipe_left,swipe_right:wake");
+        event(RIGHT, 300);
+
+        assertEvents("swipe_up@1000", "swipe_right@1300");
+        idle(10000);
+        assertEquals(2, mEvents.size());
+    }
+
+    @Test
+    public void tableSwap_newPatternsApplyToNextEvents() {
+        mRecognizer.setPatterns("swipe_up,swipe_right:torch");
+        mRecognizer.setPatterns("swipe_left,swipe_right:wake");
+
+        event(LEFT, 0);
+        event(RIGHT, 300);
+
+        assertEvents(GestureConfig.ACTION_WAKE + ":swipe_right@1300");
+    }
+
+    @Test
+    public void setPatterns_skipsInvalidPatterns() {
+        mRecognizer.setPatterns("swipe_up:torch;swipe_up,bogus:torch;swipe_up,swipe_down:bogus;"
+                + "swipe_up,swipe_up:torch;swipe_up,swipe_down:app;swipe_left,swipe_right:wake");
+
+        assertEquals(LEFT | RIGHT, mRecognizer.getGestures());
+    }
+
+    @Test
+    public void setPatterns_empty_armsNothing() {
+        mRecognizer.setPatterns("swipe_up,swipe_right:torch");
+        mRecognizer.setPatterns(null);
+
+        assertEquals(0, mRecognizer.getGestures());
+    }
+}
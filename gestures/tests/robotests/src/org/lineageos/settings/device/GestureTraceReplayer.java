@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.media.AudioManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.Scheduler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Replays a decoded flight recorder trace through the real dispatch path:
+ * GestureMotionSensor, GestureDispatcher, the action registry and the wake
+ * manager, on a virtual clock kept in step with the main looper. Sensor and
+ * screen records are fed back in at the time they were recorded, gesture,
+ * action and control records are outputs of the original run and skipped.
+ *
+ * The input is what GestureFlightRecorder.decode() prints, e.g. the end of
+ * "dumpsys activity service org.lineageos.settings.device/.HtcGestureService":
+ *     1500000000 screen 0x1 32772
+ *     2000000000 sensor 0xf 1990000000
+ * The screen is taken to be off until the first screen record.
+ */
+class GestureTraceReplayer {
+
+    /* Defaults of res/values/config.xml */
+    private static final long SEQUENCE_TIMEOUT_MS = 800;
+    private static final long FALSE_POSITIVE_WINDOW_MS = 10000;
+
+    /* Left after the last record for pending sequences and pocket checks to finish */
+    private static final long DRAIN_MS = 5000;
+
+    private final VirtualGestureClock mClock = new VirtualGestureClock(0);
+    private final Scheduler mScheduler;
+    private final GestureMotionSensor mSensor;
+    private final GestureReconciler mReconciler;
+    private final GestureActionRegistry mActionRegistry;
+    private final GestureWakeManager mWakeManager;
+    private final GestureEnergyStats mEnergyStats;
+    private final GestureLatencyTracker mLatencyTracker = new GestureLatencyTracker();
+    private final GestureDispatcher mDispatcher;
+    private GestureConfig mConfig;
+
+    /* What the proximity sensor reports, null for a device without one */
+    private Boolean mCovered;
+
+    private long mStartNanos = -1;
+    /* Virtual time the main looper has been advanced to, in whole milliseconds */
+    private long mLooperNanos;
+    private final List<String> mActions = new ArrayList<>();
+
+    GestureTraceReplayer(File dir) throws IOException {
+        ShadowLooper.pauseMainLooper();
+        mScheduler = ShadowLooper.getShadowMainLooper().getScheduler();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final File node = new File(dir, "gesture_motion");
+        node.createNewFile();
+        mSensor = new GestureMotionSensor(null, new FakeSensorSource(),
+                new GestureControlNode(node.getPath()));
+        mSensor.setClock(mClock);
+        mSensor.setLatencyTracker(mLatencyTracker);
+        mReconciler = new GestureReconciler(mSensor);
+        mActionRegistry = new GestureActionRegistry(mHost, mClock);
+        mWakeManager = new GestureWakeManager(new FakePowerSource(), mClock);
+        mEnergyStats = new GestureEnergyStats(new File(dir, "energy_stats"), handler, mClock,
+                FALSE_POSITIVE_WINDOW_MS);
+        mDispatcher = new GestureDispatcher(mSensor, mActionRegistry, mWakeManager,
+                mEnergyStats, mLatencyTracker, mProximitySource, handler, mClock,
+                SEQUENCE_TIMEOUT_MS);
+        mHost.setDispatcher(mDispatcher);
+        mSensor.registerListener(mDispatcher);
+
+        /* The service's defaults before any preference is set */
+        final int[] actions = new int[GestureMotionSensor.GESTURE_COUNT];
+        actions[GestureMotionSensor.GESTURE_INDEX_DOUBLE_TAP] = GestureConfig.ACTION_WAKE;
+        actions[GestureMotionSensor.GESTURE_INDEX_CAMERA] = GestureConfig.ACTION_CAMERA;
+        setConfig(new GestureConfig(actions, new String[GestureMotionSensor.GESTURE_COUNT],
+                true, false, AudioManager.RINGER_MODE_NORMAL, false));
+    }
+
+    /* Applies to the next screen record, set before replaying */
+    void setConfig(GestureConfig config) {
+        mConfig = config;
+        mDispatcher.setConfig(config);
+        mActionRegistry.update(config);
+    }
+
+    void setSequencePatterns(String spec) {
+        mDispatcher.setSequencePatterns(spec);
+    }
+
+    void setProximityCovered(Boolean covered) {
+        mCovered = covered;
+    }
+
+    void replay(Reader trace) throws IOException {
+        final BufferedReader reader = new BufferedReader(trace);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final String[] fields = line.trim().split("\\s+");
+            if (fields.length != 4 || !fields[2].startsWith("0x")) {
+                /* Headers and whatever else was around the records */
+                continue;
+            }
+
+            final long nanos;
+            final int arg0;
+            final long arg1;
+            try {
+                nanos = Long.parseLong(fields[0]);
+                arg0 = Integer.parseUnsignedInt(fields[2].substring(2), 16);
+                arg1 = Long.parseLong(fields[3]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            if ("sensor".equals(fields[1])) {
+                advanceTo(nanos);
+                /* Recorded when the event was handled, so also its receive time */
+                mSensor.dispatchSensorEvent(arg0, arg1, nanos);
+            } else if ("screen".equals(fields[1])) {
+                advanceTo(nanos);
+                setArmed(arg0 != 0);
+            }
+            /* Whatever was posted runs at the same virtual time */
+            runLooper();
+        }
+        if (mStartNanos >= 0) {
+            advanceTo(mClock.elapsedRealtimeNanos() + DRAIN_MS * 1000000);
+        }
+    }
+
+    /* Performed actions as "<ms after the first record> <gesture> <action>" */
+    List<String> getActions() {
+        return mActions;
+    }
+
+    GestureWakeManager getWakeManager() {
+        return mWakeManager;
+    }
+
+    GestureEnergyStats getEnergyStats() {
+        return mEnergyStats;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Replayed actions:");
+        for (String action : mActions) {
+            pw.println("  " + action);
+        }
+        GestureEventCoalescer coalescer = mSensor.getCoalescer();
+        pw.println("  coalesced events: merged=" + coalescer.getMergedCount()
+                + " dropped=" + coalescer.getDroppedCount());
+        mActionRegistry.dump(pw);
+        mDispatcher.dump(pw);
+        mWakeManager.dump(pw);
+        mEnergyStats.dump(pw);
+        mLatencyTracker.dump(pw);
+    }
+
+    private void setArmed(boolean armed) {
+        if (armed) {
+            /* Same steps as the service's onDisplayOff(), without clients and the camera */
+            mWakeManager.onDisplayOff();
+            mEnergyStats.onDisplayOff();
+            mReconciler.reconcile(true,
+                    mConfig.getArmableGestures() | mDispatcher.getSequenceGestures());
+        } else {
+            mReconciler.reconcile(false, 0);
+        }
+    }
+
+    private void advanceTo(long nanos) {
+        if (mStartNanos < 0) {
+            mStartNanos = nanos;
+            mLooperNanos = nanos;
+            mClock.setNanos(nanos);
+            setArmed(true);
+        }
+        while (mClock.elapsedRealtimeNanos() < nanos) {
+            long step = nanos - mClock.elapsedRealtimeNanos();
+            if (mScheduler.size() > 0) {
+                /* Let timers run at the virtual time they were due */
+                step = Math.min(step, 1000000);
+            }
+            mClock.advanceNanos(step);
+            runLooper();
+        }
+        runLooper();
+    }
+
+    private void runLooper() {
+        final long ms = (mClock.elapsedRealtimeNanos() - mLooperNanos) / 1000000;
+        mLooperNanos += ms * 1000000;
+        mScheduler.advanceBy(ms, TimeUnit.MILLISECONDS);
+    }
+
+    private void onAction(String action) {
+        mActions.add((mClock.elapsedRealtimeNanos() - mStartNanos) / 1000000 + " "
+                + GestureMotionSensor.gestureIndexToString(mDispatcher.getPerformingGesture())
+                + " " + action);
+    }
+
+    /* Answers as soon as the check starts, like a sensor reporting on registration */
+    private final PocketDetector.ProximitySource mProximitySource =
+            new PocketDetector.ProximitySource() {
+        @Override
+        public boolean isAvailable() {
+            return mCovered != null;
+        }
+
+        @Override
+        public void start(final PocketDetector.ProximityListener listener, Handler handler) {
+            final boolean covered = mCovered;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onProximity(covered);
+                }
+            });
+        }
+
+        @Override
+        public void stop() {
+        }
+    };
+
+    /* Logs every action callback but haptic feedback */
+    private final RecordingHost mHost = new RecordingHost() {
+        @Override
+        protected void onCall(int call) {
+            if (call != RecordingHost.CALL_HAPTICS) {
+                onAction(RecordingHost.callToString(call));
+            }
+        }
+    };
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import android.media.AudioManager;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+
+/*
+ * Replays small traces in the flight recorder's format. To replay one pulled
+ * from a device, point GESTURE_TRACE at the dump and run replay_fromEnvironment.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class GestureTraceReplayerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private GestureTraceReplayer mReplayer;
+
+    @Before
+    public void setUp() throws IOException {
+        mReplayer = new GestureTraceReplayer(mFolder.getRoot());
+    }
+
+    private static Reader trace(String... lines) {
+        return new StringReader(String.join("\n", lines));
+    }
+
+    private static GestureConfig config(int swipeUpAction, boolean pocketGate) {
+        final int[] actions = new int[GestureMotionSensor.GESTURE_COUNT];
+        actions[GestureMotionSensor.GESTURE_INDEX_DOUBLE_TAP] = GestureConfig.ACTION_WAKE;
+        actions[GestureMotionSensor.GESTURE_INDEX_SWIPE_UP] = swipeUpAction;
+        actions[GestureMotionSensor.GESTURE_INDEX_CAMERA] = GestureConfig.ACTION_CAMERA;
+        return new GestureConfig(actions, new String[GestureMotionSensor.GESTURE_COUNT],
+                true, false, AudioManager.RINGER_MODE_NORMAL, pocketGate);
+    }
+
+    @Test
+    public void replay_doubleTap_wakesOnce() {
+        replay(trace(
+                "  flight recorder (elapsed ns, type, arg0, arg1):",
+                "    1000000000 screen 0x1 32832",
+                "    2010000000 sensor 0xf 2000000000",
+                "    2110000000 gesture 0x8000 32832",
+                "    2110000000 sensor 0xf 2100000000"));
+
+        assertEquals(Arrays.asList("1010 double_tap wake"), mReplayer.getActions());
+        assertEquals(1, mReplayer.getWakeManager().getWakeUpCount());
+    }
+
+    @Test
+    public void replay_cameraAfterDoubleTap_wakeUpIsMerged() {
+        replay(trace(
+                "1000000000 screen 0x1 32832",
+                "2000000000 sensor 0xf 2000000000",
+                "2500000000 sensor 0x6 2500000000"));
+
+        assertEquals(Arrays.asList("1000 double_tap wake", "1500 camera camera"),
+                mReplayer.getActions());
+        assertEquals(1, mReplayer.getWakeManager().getWakeUpCount());
+        assertEquals(1, mReplayer.getWakeManager().getWakeUpMergedCount());
+    }
+
+    @Test
+    public void replay_staleEvent_isDropped() {
+        replay(trace(
+                "1000000000 screen 0x1 32832",
+                "5000000000 sensor 0xf 3000000000"));
+
+        assertEquals(Collections.emptyList(), mReplayer.getActions());
+        assertEquals(0, mReplayer.getWakeManager().getWakeUpCount());
+    }
+
+    @Test
+    public void replay_displayOn_ignoresEvents() {
+        replay(trace(
+                "1000000000 screen 0x1 32832",
+                "2000000000 screen 0x0 0",
+                "3000000000 sensor 0xf 3000000000"));
+
+        assertEquals(Collections.emptyList(), mReplayer.getActions());
+    }
+
+    @Test
+    public void replay_inPocket_suppressesGesture() {
+        mReplayer.setConfig(config(GestureConfig.ACTION_TORCH, true));
+        mReplayer.setProximityCovered(true);
+        replay(trace(
+                "1000000000 screen 0x1 32836",
+                "2000000000 sensor 0x2 2000000000"));
+
+        assertEquals(Collections.emptyList(), mReplayer.getActions());
+    }
+
+    @Test
+    public void replay_outOfPocket_performsGesture() {
+        mReplayer.setConfig(config(GestureConfig.ACTION_TORCH, true));
+        mReplayer.setProximityCovered(false);
+        replay(trace(
+                "1000000000 screen 0x1 32836",
+                "2000000000 sensor 0x2 2000000000"));
+
+        /* The torch action turns the display on first */
+        assertEquals(Arrays.asList("1000 swipe_up wake", "1000 swipe_up torch"),
+                mReplayer.getActions());
+    }
+
+    @Test
+    public void replay_sequence_performsPatternAction() {
+        mReplayer.setSequencePatterns("swipe_up,swipe_right:torch");
+        replay(trace(
+                "1000000000 screen 0x1 32832",
+                "2000000000 sensor 0x2 2000000000",
+                "2300000000 sensor 0x5 2300000000"));
+
+        /* The torch action turns the display on first */
+        assertEquals(Arrays.asList("1300 swipe_right wake", "1300 swipe_right torch"),
+                mReplayer.getActions());
+    }
+
+    @Test
+    public void replay_sequencePrefixTimesOut_replaysSingleGesture() {
+        /* Replayed once the timeout and the batching grace period are over */
+        mReplayer.setConfig(config(GestureConfig.ACTION_TORCH, false));
+        mReplayer.setSequencePatterns("swipe_up,swipe_right:camera");
+        replay(trace(
+                "1000000000 screen 0x1 32836",
+                "2000000000 sensor 0x2 2000000000"));
+
+        /* The torch action turns the display on first */
+        assertEquals(Arrays.asList("1900 swipe_up wake", "1900 swipe_up torch"),
+                mReplayer.getActions());
+    }
+
+    @Test
+    public void replay_fromEnvironment() throws IOException {
+        final String path = System.getenv("GESTURE_TRACE");
+        assumeTrue(path != null);
+
+        try (Reader reader = new FileReader(path)) {
+            mReplayer.replay(reader);
+        }
+        final PrintWriter pw = new PrintWriter(System.out);
+        mReplayer.dump(pw);
+        pw.flush();
+    }
+
+    private void replay(Reader trace) {
+        try {
+            mReplayer.replay(trace);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.lineageos.settings.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class PocketDetectorTest {
+
+    private static final class FakeProximitySource implements PocketDetector.ProximitySource {
+        boolean available = true;
+        int startCount;
+        int stopCount;
+        PocketDetector.ProximityListener listener;
+
+        @Override
+        public boolean isAvailable() {
+            return available;
+        }
+
+        @Override
+        public void start(PocketDetector.ProximityListener listener, Handler handler) {
+            startCount++;
+            this.listener = listener;
+        }
+
+        @Override
+        public void stop() {
+            stopCount++;
+            listener = null;
+        }
+    }
+
+    private FakeProximitySource mSource;
+    private PocketDetector mDetector;
+    private int mResultCount;
+    private int mResultGesture;
+    private long mResultTimestamp;
+    private int mResultAction;
+    private boolean mResultCovered;
+
+    private final PocketDetector.Callback mCallback = new PocketDetector.Callback() {
+        @Override
+        public void onPocketCheckResult(int gestureIndex, long timestamp, int action,
+                boolean covered) {
+            mResultCount++;
+            mResultGesture = gestureIndex;
+            mResultTimestamp = timestamp;
+            mResultAction = action;
+            mResultCovered = covered;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+        mSource = new FakeProximitySource();
+        mDetector = new PocketDetector(mSource, new Handler(Looper.getMainLooper()), mCallback);
+    }
+
+    @Test
+    public void isAvailable_followsSource() {
+        assertTrue(mDetector.isAvailable());
+
+        mSource.available = false;
+
+        assertFalse(mDetector.isAvailable());
+    }
+
+    @Test
+    public void check_uncovered_reportsGestureAndStopsSensor() {
+        mDetector.check(GestureMotionSensor.GESTURE_INDEX_SWIPE_UP, 1234,
+                GestureConfig.ACTION_NONE);
+        assertEquals(1, mSource.startCount);
+        assertEquals(0, mResultCount);
+
+        mSource.listener.onProximity(false);
+
+        assertEquals(1, mResultCount);
+        assertEquals(GestureMotionSensor.GESTURE_INDEX_SWIPE_UP, mResultGesture);
+        assertEquals(1234, mResultTimestamp);
+        assertFalse(mResultCovered);
+        assertEquals(1, mSource.stopCount);
+    }
+
+    @Test
+    public void check_covered_reportsCovered() {
+        mDetector.check(GestureMotionSensor.GESTURE_INDEX_DOUBLE_TAP, 1234,
+                GestureConfig.ACTION_NONE);
+
+        mSource.listener.onProximity(true);
+
+        assertEquals(1, mResultCount);
+        assertTrue(mResultCovered);
+    }
+
+    @Test
+    public void check_noSample_timesOutUncovered() {
+        mDetector.check(GestureMotionSensor.GESTURE_INDEX_DOUBLE_TAP, 1234,
+                GestureConfig.ACTION_NONE);
+
+        ShadowLooper.idleMainLooper(mDetector.getCheckTimeoutMs() - 1);
+        assertEquals(0, mResultCount);
+        ShadowLooper.idleMainLooper(1);
+
+        assertEquals(1, mResultCount);
+        assertFalse(mResultCovered);
+        assertEquals(1, mSource.stopCount);
+        assertNull(mSource.listener);
+    }
+
+    @Test
+    public void check_sampleBeforeTimeout_cancelsTimeout() {
+        mDetector.check(GestureMotionSensor.GESTURE_INDEX_DOUBLE_TAP, 1234,
+                GestureConfig.ACTION_NONE);
+        mSource.listener.onProximity(true);
+
+        ShadowLooper.idleMainLooper(mDetector.getCheckTimeoutMs());
+
+        assertEquals(1, mResultCount);
+        assertTrue(mResultCovered);
+    }
+
+    @Test
+    public void check_whilePending_keepsLatestGestureOnly() {
+        mDetector.check(GestureMotionSensor.GESTURE_INDEX_SWIPE_UP, 1000,
+                GestureConfig.ACTION_NONE);
+        mDetector.check(GestureMotionSensor.GESTURE_INDEX_SWIPE_DOWN, 2000,
+                GestureConfig.ACTION_NONE);
+
+        mSource.listener.onProximity(false);
+
+        assertEquals(1, mSource.startCount);
+        assertEquals(1, mResultCount);
+        assertEquals(GestureMotionSensor.GESTURE_INDEX_SWIPE_DOWN, mResultGesture);
+        assertEquals(2000, mResultTimestamp);
+    }
+
+    @Test
+    public void check_handsBackAction() {
+        mDetector.check(GestureMotionSensor.GESTURE_INDEX_SWIPE_RIGHT, 1000,
+                GestureConfig.ACTION_TORCH);
+
+        mSource.listener.onProximity(false);
+
+        assertEquals(GestureConfig.ACTION_TORCH, mResultAction);
+    }
+
+    @Test
+    public void check_whilePending_replacesAction() {
+        mDetector.check(GestureMotionSensor.GESTURE_INDEX_SWIPE_RIGHT, 1000,
+                GestureConfig.ACTION_TORCH);
+        mDetector.check(GestureMotionSensor.GESTURE_INDEX_SWIPE_UP, 2000,
+                GestureConfig.ACTION_NONE);
+
+        mSource.listener.onProximity(false);
+
+        assertEquals(1, mResultCount);
+        assertEquals(GestureConfig.ACTION_NONE, mResultAction);
+    }
+
+    @Test
+    public void check_afterResult_startsNewCheck() {
+        mDetector.check(GestureMotionSensor.GESTURE_INDEX_SWIPE_UP, 1000,
+                GestureConfig.ACTION_NONE);
+        mSource.listener.onProximity(true);
+
+        mDetector.check(GestureMotionSensor.GESTURE_INDEX_SWIPE_UP, 2000,
+                GestureConfig.ACTION_NONE);
+        mSource.listener.onProximity(false);
+
+        assertEquals(2, mSource.startCount);
+        assertEquals(2, mResultCount);
+        assertFalse(mResultCovered);
+    }
+}
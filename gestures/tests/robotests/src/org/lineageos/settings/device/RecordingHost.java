@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.content.Intent;
+import android.view.KeyEvent;
+
+/*
+ * Action host that counts what the actions ask for instead of doing it.
+ * Counting allocates nothing, so it can sit on measured paths.
+ */
+class RecordingHost implements GestureActionRegistry.Host {
+
+    static final int CALL_CAMERA = 0;
+    static final int CALL_TORCH = 1;
+    static final int CALL_WAKE_UP = 2;
+    static final int CALL_ACTIVITY = 3;
+    static final int CALL_MEDIA_KEY = 4;
+    static final int CALL_HAPTICS = 5;
+    static final int CALL_COUNT = 6;
+
+    private static final String[] CALL_NAMES = {
+        "camera", "torch", "wake", "app", "media", "haptics"
+    };
+
+    private final int[] mCounts = new int[CALL_COUNT];
+    private GestureDispatcher mDispatcher;
+
+    static String callToString(int call) {
+        return CALL_NAMES[call];
+    }
+
+    /* Wake-ups then go through the dispatcher like the service's, for its accounting */
+    void setDispatcher(GestureDispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    int getCount(int call) {
+        return mCounts[call];
+    }
+
+    /* Called after counting, e.g. to log the call */
+    protected void onCall(int call) {
+    }
+
+    private void record(int call) {
+        mCounts[call]++;
+        onCall(call);
+    }
+
+    private void dispatchWakeUp() {
+        if (mDispatcher != null) {
+            mDispatcher.wakeUp();
+        }
+    }
+
+    @Override
+    public void launchCamera() {
+        /* The service wakes the device up before showing the camera */
+        dispatchWakeUp();
+        record(CALL_CAMERA);
+    }
+
+    @Override
+    public void toggleTorch(int gestureIndex, long timestamp) {
+        record(CALL_TORCH);
+    }
+
+    @Override
+    public void wakeUp() {
+        dispatchWakeUp();
+        record(CALL_WAKE_UP);
+    }
+
+    @Override
+    public void startActivity(Intent intent) {
+        record(CALL_ACTIVITY);
+    }
+
+    @Override
+    public void dispatchMediaKey(KeyEvent down, KeyEvent up) {
+        record(CALL_MEDIA_KEY);
+    }
+
+    @Override
+    public void doHapticFeedback(int gestureIndex) {
+        record(CALL_HAPTICS);
+    }
+}
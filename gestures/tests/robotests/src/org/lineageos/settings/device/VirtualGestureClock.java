@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.lineageos.settings.device;
+
+/* Clock that only moves when told to, for deterministic tests and replays */
+class VirtualGestureClock implements GestureClock {
+
+    private long mNanos;
+
+    VirtualGestureClock(long startNanos) {
+        mNanos = startNanos;
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return mNanos / 1000000;
+    }
+
+    @Override
+    public long elapsedRealtimeNanos() {
+        return mNanos;
+    }
+
+    void advanceNanos(long nanos) {
+        mNanos += nanos;
+    }
+
+    void advanceMillis(long millis) {
+        mNanos += millis * 1000000;
+    }
+
+    void setNanos(long nanos) {
+        mNanos = nanos;
+    }
+}